@@ -5,16 +5,71 @@ import java.util.Collection;
 import net.sourceforge.cobertura.coveragedata.ProjectData;
 
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 
 public class NonDummClassInstrumenter
     extends ClassInstrumenter
 {
 
+    private final String initializer;
+
+    private boolean hasStaticInitializer;
+
     @SuppressWarnings( "rawtypes" )
     public NonDummClassInstrumenter( ProjectData projectData, ClassVisitor cv, Collection ignoreRegexs,
                                      Collection ignoreBranchesRegexes )
+    {
+        this( projectData, cv, ignoreRegexs, ignoreBranchesRegexes, null );
+    }
+
+    /**
+     * @param initializer The internal name of a class whose static <code>init()</code> method is to be called first
+     *            thing in the static initializer of each instrumented class, may be {@code null}.
+     */
+    @SuppressWarnings( "rawtypes" )
+    public NonDummClassInstrumenter( ProjectData projectData, ClassVisitor cv, Collection ignoreRegexs,
+                                     Collection ignoreBranchesRegexes, String initializer )
     {
         super( projectData, cv, ignoreRegexs, ignoreBranchesRegexes );
+        this.initializer = initializer;
+    }
+
+    @Override
+    public MethodVisitor visitMethod( int access, String name, String desc, String signature, String[] exceptions )
+    {
+        MethodVisitor mv = super.visitMethod( access, name, desc, signature, exceptions );
+        if ( initializer == null || mv == null || !isInstrumented() || !"<clinit>".equals( name ) )
+        {
+            return mv;
+        }
+
+        hasStaticInitializer = true;
+        return new MethodAdapter( mv )
+        {
+            @Override
+            public void visitCode()
+            {
+                super.visitCode();
+                mv.visitMethodInsn( Opcodes.INVOKESTATIC, initializer, "init", "()V" );
+            }
+        };
+    }
+
+    @Override
+    public void visitEnd()
+    {
+        if ( initializer != null && !hasStaticInitializer && isInstrumented() )
+        {
+            MethodVisitor mv = cv.visitMethod( Opcodes.ACC_STATIC, "<clinit>", "()V", null, null );
+            mv.visitCode();
+            mv.visitMethodInsn( Opcodes.INVOKESTATIC, initializer, "init", "()V" );
+            mv.visitInsn( Opcodes.RETURN );
+            mv.visitMaxs( 0, 0 );
+            mv.visitEnd();
+        }
+        super.visitEnd();
     }
 
 }
@@ -17,34 +17,44 @@ package org.sonatype.maven.plugin.cobertura4it;
  */
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
-import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
 import net.sourceforge.cobertura.coveragedata.ProjectData;
-import net.sourceforge.cobertura.instrument.NonDummClassInstrumenter;
 
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.ArtifactUtils;
 import org.apache.maven.artifact.factory.ArtifactFactory;
+import org.apache.maven.artifact.metadata.ArtifactMetadataSource;
 import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.artifact.resolver.AbstractArtifactResolutionException;
+import org.apache.maven.artifact.resolver.ArtifactResolutionResult;
 import org.apache.maven.artifact.resolver.ArtifactResolver;
+import org.apache.maven.artifact.resolver.filter.ScopeArtifactFilter;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
 import org.codehaus.plexus.util.FileUtils;
-import org.codehaus.plexus.util.IOUtil;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
+import org.codehaus.plexus.util.StringUtils;
+import org.sonatype.maven.plugin.cobertura4it.runtime.CoverageShard;
 
 /**
  * @author <a href="mailto:velo.br@gmail.com">Marvin Froeder</a>
@@ -66,6 +76,12 @@ public class ArtifactInstrumenterMojo
     /** @component */
     private ArtifactResolver resolver;
 
+    /** @component */
+    private MavenProjectHelper projectHelper;
+
+    /** @component role="org.apache.maven.artifact.metadata.ArtifactMetadataSource" hint="maven" */
+    private ArtifactMetadataSource metadataSource;
+
     /** @parameter expression="${localRepository}" */
     private ArtifactRepository localRepository;
 
@@ -73,6 +89,10 @@ public class ArtifactInstrumenterMojo
     private List<? extends ArtifactRepository> remoteRepositories;
 
     /**
+     * The artifacts to resolve and instrument. An item only brings in its runtime dependencies if its
+     * <code>resolveTransitively</code> flag is set, which is off by default. Unless an <code>outputDirectory</code> is
+     * used, those dependencies are instrumented in place in the local repository as well.
+     * 
      * @parameter
      */
     private ArtifactItem[] artifactItems;
@@ -104,12 +124,182 @@ public class ArtifactInstrumenterMojo
      */
     private Collection<Pattern> ignoreBranchesRegexes = new Vector<Pattern>();
 
+    /**
+     * The Ant-like patterns of the classes to instrument, matched against the class name in the form
+     * <code>org/example/Foo.class</code>. Defaults to all classes.
+     * 
+     * @parameter
+     */
+    private String[] includes;
+
+    /**
+     * The Ant-like patterns of the classes to exclude from instrumentation, matched against the class name in the form
+     * <code>org/example/Foo.class</code>. Excluded classes are copied as is and do not show up in the coverage data.
+     * 
+     * @parameter
+     */
+    private String[] excludes;
+
+    /**
+     * The number of threads used to inflate, instrument and deflate the classes of the JARs. Values less than
+     * <code>1</code> select the number of available processors, <code>1</code> instruments everything on the build
+     * thread.
+     * 
+     * @parameter expression="${cobertura.instrumentThreads}" default-value="0"
+     */
+    private int instrumentThreads;
+
+    /**
+     * The maximum number of JARs being rewritten at the same time. Reading and writing of a JAR overlaps with the
+     * instrumentation of its classes, so having several JARs in flight keeps the instrumentation threads busy.
+     * 
+     * @parameter expression="${cobertura.concurrentJars}" default-value="4"
+     */
+    private int concurrentJars;
+
+    /**
+     * The compression of the instrumented JARs, one of <code>deflate</code> to deflate the instrumented classes and copy
+     * all other entries as is, <code>store</code> to write all entries uncompressed, which makes for faster writes and
+     * class loading at the expense of disk space, or <code>keep</code> to have each instrumented class keep the
+     * compression method of its original entry.
+     * 
+     * @parameter expression="${cobertura.compression}" default-value="deflate"
+     */
+    private String compression;
+
+    /**
+     * The deflate level for the instrumented classes, from <code>0</code> (fastest) to <code>9</code> (smallest), or
+     * <code>-1</code> for the default level.
+     * 
+     * @parameter expression="${cobertura.compressionLevel}" default-value="-1"
+     */
+    private int compressionLevel;
+
+    /**
+     * Indicates whether instrumented JARs and their coverage metadata should be kept in a content-addressed cache. A
+     * JAR whose contents, instrumentation config and plugin version match a cache entry is restored from the cache
+     * instead of being instrumented again.
+     * 
+     * @parameter expression="${cobertura.useCache}" default-value="true"
+     */
+    private boolean useCache;
+
+    /**
+     * The directory of the instrumentation cache. The cache may be shared by several builds and build agents. Defaults
+     * to <code>.cache/cobertura4it</code> in the local repository.
+     * 
+     * @parameter expression="${cobertura.cacheDirectory}"
+     */
+    private File cacheDirectory;
+
+    /**
+     * The version of this plugin, part of the cache key.
+     * 
+     * @parameter expression="${plugin.version}"
+     * @readonly
+     */
+    private String pluginVersion;
+
+    /**
+     * The directory to write the instrumented JARs to, leaving the original JARs untouched. Each JAR keeps its file name
+     * and gets its coverage metadata stored next to it, so that a later build can reuse an instrumented JAR that is
+     * newer than its original. If unset, the original JARs are replaced by their instrumented versions.
+     * 
+     * @parameter expression="${cobertura.outputDirectory}"
+     */
+    private File outputDirectory;
+
+    /**
+     * The classifier to attach the instrumented JARs to the project with, e.g. <code>instrumented</code>. As several
+     * JARs may be instrumented, the classifier of each attached JAR is suffixed with the base name of its file. If set
+     * without an <code>outputDirectory</code>, the instrumented JARs are written to
+     * <code>${project.build.directory}/instrumented</code>.
+     * 
+     * @parameter expression="${cobertura.classifier}"
+     */
+    private String classifier;
+
+    /**
+     * The format of the coverage metadata written by this goal, either <code>ser</code> for the Java serialization
+     * used by Cobertura itself or <code>binary</code> for a compact format that is smaller and faster to load. The
+     * goals reading coverage data detect the format from the file header.
+     * 
+     * @parameter expression="${cobertura.dataFormat}" default-value="ser"
+     */
+    private String dataFormat;
+
+    /**
+     * The directory for per-JVM coverage shards, see the <code>instrument</code> goal. The runtime classes
+     * configuring the shards are added to each instrumented JAR, and the shards of earlier test runs are deleted.
+     * 
+     * @parameter expression="${cobertura.shardDirectory}"
+     */
+    private File shardDirectory;
+
+    /**
+     * How the instrumented classes count their hits, one of <code>cobertura</code>, <code>mapped</code>,
+     * <code>atomic</code> or <code>boolean</code>, see the <code>instrument</code> goal. In the probe modes, the
+     * runtime classes are added to each instrumented JAR and the <code>shardDirectory</code> defaults to
+     * <code>${project.build.directory}/cobertura/shards</code>.
+     * 
+     * @parameter expression="${cobertura.probes}" default-value="cobertura"
+     */
+    private String probes;
+
+    /**
+     * Where the probe modes place the line probes, either <code>line</code> for a probe per line, or <code>block</code>
+     * to drop the probes of lines that always execute together with the first probed line of their basic block. The
+     * dropped lines are counted from the remaining probe when the counters are read, which shrinks the instrumented
+     * methods and saves probe executions in straight-line code. A line is only dropped if neither a branch nor a
+     * method call lies between it and the remaining probe, so only implicit exceptions such as a
+     * <code>NullPointerException</code> can make its count differ from the line placement.
+     * 
+     * @parameter expression="${cobertura.probePlacement}" default-value="line"
+     */
+    private String probePlacement;
+
+    /**
+     * The internal name of the runtime class configuring the coverage shards.
+     */
+    private static final String SHARD_RUNTIME = CoverageShard.class.getName().replace( '.', '/' );
+
+    /**
+     * The parsed <code>compression</code>.
+     */
+    private JarRewriter.Compression jarCompression;
+
+    /**
+     * The parsed <code>dataFormat</code>.
+     */
+    private CoverageDataFile.Format format;
+
+    /**
+     * The instrumentation cache, {@code null} if disabled.
+     */
+    private InstrumentationCache cache;
+
+    /**
+     * The digest of everything besides the input JAR that shapes an instrumented copy and its metadata.
+     */
+    private String configDigest;
+
+    /**
+     * The runtime classes to add to the instrumented JARs, {@code null} if none.
+     */
+    private Map<String, byte[]> runtimeEntries;
+
+    /**
+     * The resource configuring the shard directory of this build, added when an instrumented JAR is put into place
+     * and never cached, {@code null} if none.
+     */
+    private Map<String, byte[]> shardEntries;
+
     public void execute()
         throws MojoExecutionException
     {
         List<File> instrPath = collectInstrumentationPath();
 
-        if ( instrPath.isEmpty() )
+        if ( instrPath.isEmpty() && ( artifactItems == null || artifactItems.length == 0 ) )
         {
             getLog().error( "Nothing found to instrument!" );
             return;
@@ -128,77 +318,421 @@ public class ArtifactInstrumenterMojo
         }
 
         ProjectData projectData = new ProjectData();
+        ProbeInstrumenter probeInstrumenter = ProbeInstrumenter.forMode( probes, probePlacement );
+        if ( probeInstrumenter != null && shardDirectory == null )
+        {
+            shardDirectory = new File( project.getBuild().getDirectory(), "cobertura/shards" );
+        }
+        String initializer = ( shardDirectory != null && probeInstrumenter == null ) ? SHARD_RUNTIME : null;
+        Instrumenter instrumenter =
+            new Instrumenter( ignoreRegexes, ignoreBranchesRegexes, includes, excludes, initializer,
+                              probeInstrumenter );
+
+        runtimeEntries = null;
+        shardEntries = null;
+        if ( shardDirectory != null )
+        {
+            try
+            {
+                runtimeEntries = RuntimeSupport.getClassEntries();
+                shardEntries = RuntimeSupport.getShardEntries( shardDirectory );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Failed to load instrumentation runtime: " + e.getMessage(), e );
+            }
 
-        for ( File file : instrPath )
+            int cleared = RuntimeSupport.clearShards( shardDirectory );
+            if ( cleared > 0 )
+            {
+                getLog().info( "Deleted " + cleared + " coverage shard(s) of earlier test runs" );
+            }
+        }
+
+        if ( outputDirectory == null && StringUtils.isNotEmpty( classifier ) )
+        {
+            outputDirectory = new File( project.getBuild().getDirectory(), "instrumented" );
+        }
+        if ( outputDirectory != null )
+        {
+            outputDirectory.mkdirs();
+        }
+
+        try
+        {
+            jarCompression = JarRewriter.Compression.valueOf( compression.toUpperCase( Locale.ENGLISH ) );
+        }
+        catch ( IllegalArgumentException e )
         {
-            instrument( projectData, file );
+            throw new MojoExecutionException( "Invalid compression " + compression
+                + ", expected one of deflate, store or keep" );
         }
+        format = CoverageDataFile.getFormat( dataFormat );
+        if ( compressionLevel < -1 || compressionLevel > 9 )
+        {
+            throw new MojoExecutionException( "Invalid compressionLevel " + compressionLevel
+                + ", expected a value from 0 to 9 or -1 for the default" );
+        }
+
+        List<Object> config =
+            Arrays.<Object> asList( pluginVersion, jarCompression, Integer.valueOf( compressionLevel ), format,
+                                    shardDirectory, InstrumentationManifest.toHex( instrumenter.digestConfig() ) );
+        configDigest = InstrumentationManifest.toHex( InstrumentationManifest.digestConfig( config ) );
+
+        cache = null;
+        if ( useCache )
+        {
+            if ( cacheDirectory == null )
+            {
+                cacheDirectory = new File( localRepository.getBasedir(), ".cache/cobertura4it" );
+            }
+            cache =
+                new InstrumentationCache( cacheDirectory, pluginVersion + ":" + jarCompression + ":" + compressionLevel,
+                                          instrumenter.digestConfig() );
+        }
+
+        int threads = instrumentThreads > 0 ? instrumentThreads : Runtime.getRuntime().availableProcessors();
+        getLog().info( "Instrumenting JARs using " + threads + " thread(s)" );
 
-        CoverageDataFileHandler.saveCoverageData( projectData, new File( coberturaFolder, "cobertura.ser" ) );
+        ExecutorService workers = threads > 1 ? Executors.newFixedThreadPool( threads ) : null;
+        ExecutorService readers = concurrentJars > 1 ? Executors.newFixedThreadPool( concurrentJars ) : null;
+        // the Maven 2.0 resolver is not known to be thread-safe, so the items resolve one after the other
+        ExecutorService resolver = Executors.newSingleThreadExecutor();
+        try
+        {
+            List<Future<ProjectData>> results = new ArrayList<Future<ProjectData>>();
+            Set<File> scheduled = new HashSet<File>();
+
+            // start instrumenting the artifacts of an item as soon as it is resolved, the others resolve meanwhile
+            if ( artifactItems != null && artifactItems.length != 0 )
+            {
+                for ( Future<List<Artifact>> resolution : resolveArtifacts( resolver ) )
+                {
+                    for ( Artifact artifact : get( resolution ) )
+                    {
+                        if ( scheduled.add( artifact.getFile() ) )
+                        {
+                            getLog().debug( "  " + artifact.getFile().getAbsolutePath() );
+                            results.add( submit( instrumenter, artifact.getFile(), readers, workers ) );
+                        }
+                    }
+                }
+            }
+
+            for ( File file : instrPath )
+            {
+                if ( scheduled.add( file ) )
+                {
+                    results.add( submit( instrumenter, file, readers, workers ) );
+                }
+            }
+
+            if ( results.isEmpty() )
+            {
+                getLog().error( "Nothing found to instrument!" );
+                return;
+            }
+
+            // merge in JAR order so the metadata does not depend on which JAR finished first
+            for ( Future<ProjectData> result : results )
+            {
+                projectData.merge( get( result ) );
+            }
+
+            getLog().info( "Instrumented " + results.size() + " JAR(s)" );
+        }
+        finally
+        {
+            resolver.shutdownNow();
+            if ( readers != null )
+            {
+                readers.shutdownNow();
+            }
+            if ( workers != null )
+            {
+                workers.shutdownNow();
+            }
+        }
+
+        File dataFile = new File( coberturaFolder, "cobertura.ser" );
+        try
+        {
+            CoverageDataFile.save( projectData, dataFile, format );
+            // the pristine copy serves as the base of the merge goal, which overwrites the data file
+            FileTransfer.copy( dataFile, new File( coberturaFolder, "instrumentation.ser" ) );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Failed to save coverage metadata " + dataFile, e );
+        }
     }
 
-    private void instrument( ProjectData projectData, File file )
+    private Future<ProjectData> submit( final Instrumenter instrumenter, final File file, ExecutorService readers,
+                                        final ExecutorService workers )
+    {
+        Callable<ProjectData> task = new Callable<ProjectData>()
+        {
+            public ProjectData call()
+                throws MojoExecutionException
+            {
+                return instrument( instrumenter, file, workers );
+            }
+        };
+
+        if ( readers != null )
+        {
+            return readers.submit( task );
+        }
+
+        FutureTask<ProjectData> inline = new FutureTask<ProjectData>( task );
+        inline.run();
+        return inline;
+    }
+
+    private <T> T get( Future<T> future )
         throws MojoExecutionException
     {
-        File original = null;
         try
         {
-            original =
-                File.createTempFile( FileUtils.basename( file.getName() ), "." + FileUtils.extension( file.getName() ) );
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            throw new MojoExecutionException( "Interrupted while instrumenting JARs", e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof MojoExecutionException )
+            {
+                throw (MojoExecutionException) e.getCause();
+            }
+            throw new MojoExecutionException( e.getCause().getMessage(), e.getCause() );
+        }
+    }
 
-            FileUtils.copyFile( file, original );
-            file.delete();
+    private ProjectData instrument( final Instrumenter instrumenter, File file, ExecutorService workers )
+        throws MojoExecutionException
+    {
+        File target = ( outputDirectory != null ) ? new File( outputDirectory, file.getName() ) : file;
+        File targetData = new File( target.getPath() + ".ser" );
+        File targetKey = new File( target.getPath() + ".key" );
 
-            ZipInputStream zipInput = new ZipInputStream( new FileInputStream( original ) );
-            ZipOutputStream zipOutput = new ZipOutputStream( new FileOutputStream( file ) );
+        File instrumented = null;
+        try
+        {
+            // the input JAR is identified by its attributes only, hashing it would defeat the quick check
+            String stamp =
+                configDigest + " " + file.length() + " " + file.lastModified() + " " + file.getAbsolutePath();
+            if ( target != file && target.lastModified() >= file.lastModified()
+                && targetData.lastModified() >= target.lastModified() && stamp.equals( readKey( targetKey ) ) )
+            {
+                try
+                {
+                    ProjectData projectData = CoverageDataFile.load( targetData );
+                    getLog().debug( "Instrumented " + target + " is up to date" );
+                    attach( target );
+                    return projectData;
+                }
+                catch ( IOException e )
+                {
+                    getLog().debug( "Ignoring unreadable coverage metadata " + targetData + ": " + e.getMessage() );
+                }
+            }
 
-            try
+            // the copy about to be replaced no longer matches its key
+            targetKey.delete();
+
+            instrumented =
+                File.createTempFile( FileUtils.basename( target.getName() ), ".tmp", target.getParentFile() );
+
+            ProjectData projectData = null;
+
+            String key = null;
+            if ( cache != null )
             {
-                ZipEntry entry;
-                while ( ( entry = zipInput.getNextEntry() ) != null )
+                key = cache.getKey( file );
+                InstrumentationCache.Entry entry = cache.get( key );
+                if ( entry != null )
                 {
-                    if ( entry.isDirectory() )
+                    getLog().debug( "Restoring instrumented " + file + " from cache" );
+                    projectData = entry.getMetadata();
+                    File jar = entry.getJar();
+                    if ( jar != null )
                     {
-                        continue;
+                        publishInstrumented( target, jar, instrumented );
                     }
+                    else if ( target != file )
+                    {
+                        FileTransfer.copy( file, instrumented );
+                        publish( target, instrumented );
+                    }
+                }
+            }
 
-                    zipOutput.putNextEntry( new ZipEntry( entry.getName() ) );
+            if ( projectData == null )
+            {
+                projectData = rewrite( instrumenter, file, target, instrumented, key, workers );
+            }
 
-                    byte[] classContent = IOUtil.toByteArray( zipInput );
-                    if ( entry.getName().endsWith( ".class" ) )
-                    {
-                        ClassReader cr = new ClassReader( classContent );
-                        ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_MAXS );
-                        NonDummClassInstrumenter cv =
-                            new NonDummClassInstrumenter( projectData, cw, ignoreRegexes, ignoreBranchesRegexes );
-                        cr.accept( cv, 0 );
+            if ( target != file )
+            {
+                CoverageDataFile.save( projectData, targetData, format );
+                FileUtils.fileWrite( targetKey.getPath(), stamp );
+                attach( target );
+            }
 
-                        if ( cv.isInstrumented() )
-                        {
-                            classContent = cw.toByteArray();
-                        }
-                    }
+            return projectData;
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( e.getMessage(), e );
+        }
+        finally
+        {
+            if ( instrumented != null )
+            {
+                instrumented.delete();
+            }
+        }
+    }
+
+    private ProjectData rewrite( final Instrumenter instrumenter, File file, File target, File instrumented,
+                                 String key, ExecutorService workers )
+        throws IOException
+    {
+        JarRewriter.EntryTransformer transformer = new JarRewriter.EntryTransformer()
+        {
+            public boolean isCandidate( String name )
+            {
+                return name.endsWith( ".class" );
+            }
 
-                    IOUtil.copy( classContent, zipOutput );
+            public byte[] transform( String name, byte[] content, ProjectData classData )
+            {
+                return instrumenter.instrument( classData, content );
+            }
+        };
 
-                    zipOutput.closeEntry();
-                }
+        ProjectData projectData = new ProjectData();
+        JarRewriter rewriter = new JarRewriter( file, jarCompression, compressionLevel );
+        int modified = rewriter.rewrite( instrumented, transformer, projectData, workers, runtimeEntries );
+
+        if ( cache != null )
+        {
+            try
+            {
+                cache.put( key, ( modified > 0 ) ? instrumented : null, projectData );
+            }
+            catch ( IOException e )
+            {
+                getLog().warn( "Failed to cache instrumented " + file + ": " + e.getMessage() );
+            }
+        }
+
+        if ( modified > 0 )
+        {
+            File copy = File.createTempFile( FileUtils.basename( target.getName() ), ".tmp", target.getParentFile() );
+            try
+            {
+                publishInstrumented( target, instrumented, copy );
             }
             finally
             {
-                IOUtil.close( zipInput );
-                IOUtil.close( zipOutput );
+                copy.delete();
             }
+
+            if ( cache != null )
+            {
+                try
+                {
+                    // also recognize the instrumented JAR itself, e.g. when instrumenting the same file again
+                    cache.put( cache.getKey( target ), null, projectData );
+                }
+                catch ( IOException e )
+                {
+                    getLog().warn( "Failed to cache instrumented " + target + ": " + e.getMessage() );
+                }
+            }
+        }
+        else if ( target != file )
+        {
+            FileTransfer.copy( file, instrumented );
+            publish( target, instrumented );
+        }
+
+        return projectData;
+    }
+
+    /**
+     * Reads the key recorded for an instrumented copy by a previous build.
+     *
+     * @return The key, {@code null} if none was recorded.
+     */
+    private static String readKey( File targetKey )
+    {
+        if ( !targetKey.isFile() )
+        {
+            return null;
+        }
+        try
+        {
+            return FileUtils.fileRead( targetKey.getPath() ).trim();
         }
         catch ( IOException e )
         {
-            throw new MojoExecutionException( e.getMessage(), e );
+            return null;
         }
-        finally
+    }
+
+    /**
+     * Puts an instrumented JAR into place, adding the shard configuration of this build. That configuration is kept
+     * out of the cache, so cached JARs are the same for all modules and build agents.
+     *
+     * @param target The file to write, must not be {@code null}.
+     * @param instrumented The instrumented JAR, must not be {@code null}. It is only read.
+     * @param tmp A scratch file next to the target, must not be {@code null}.
+     */
+    private void publishInstrumented( File target, File instrumented, File tmp )
+        throws IOException
+    {
+        if ( shardEntries != null && !shardEntries.isEmpty() )
+        {
+            new JarRewriter( instrumented, jarCompression, compressionLevel ).append( tmp, shardEntries );
+        }
+        else
+        {
+            FileTransfer.copy( instrumented, tmp );
+        }
+        publish( target, tmp );
+    }
+
+    /**
+     * Moves a completely written JAR into place, so an interrupted build never leaves a half-written JAR behind.
+     */
+    private void publish( File target, File instrumented )
+        throws IOException
+    {
+        target.delete();
+        if ( !instrumented.renameTo( target ) )
+        {
+            FileUtils.copyFile( instrumented, target );
+        }
+    }
+
+    private void attach( File target )
+    {
+        if ( StringUtils.isNotEmpty( classifier ) )
         {
-            if ( original != null )
+            String name = target.getName();
+            String basename = name.substring( 0, name.length() - FileUtils.extension( name ).length() );
+            if ( basename.endsWith( "." ) )
             {
-                original.delete();
+                basename = basename.substring( 0, basename.length() - 1 );
+            }
+            synchronized ( project )
+            {
+                projectHelper.attachArtifact( project, FileUtils.extension( name ), classifier + "-" + basename,
+                                              target );
             }
         }
     }
@@ -210,12 +744,6 @@ public class ArtifactInstrumenterMojo
 
         List<File> instrPath = new ArrayList<File>();
 
-        if ( artifactItems != null && artifactItems.length != 0 )
-        {
-            List<Artifact> artifacts = resolveArtifacts();
-            instrPath.addAll( getPaths( artifacts ) );
-        }
-
         if ( jarFiles != null )
         {
             for ( File jar : jarFiles )
@@ -261,35 +789,93 @@ public class ArtifactInstrumenterMojo
         return instrPath;
     }
 
-    private List<File> getPaths( List<Artifact> artifacts )
+    /**
+     * Resolves the artifact items in order on the given executor, each one on its own task. The artifacts of an item
+     * are its own artifact unless it is configured not to be instrumented, followed by its runtime dependencies sorted
+     * by id if it is to be resolved transitively. Dependencies matching an item that is not to be instrumented are left
+     * out as well.
+     */
+    private List<Future<List<Artifact>>> resolveArtifacts( ExecutorService resolver )
     {
-        List<File> paths = new ArrayList<File>();
-        for ( Artifact artifact : artifacts )
+        final Set<String> excluded = new HashSet<String>();
+        for ( ArtifactItem artifactItem : artifactItems )
         {
-            paths.add( artifact.getFile() );
+            if ( !artifactItem.getInstrument() )
+            {
+                excluded.add( ArtifactUtils.versionlessKey( artifactItem.getGroupId(), artifactItem.getArtifactId() ) );
+            }
+            if ( artifactItem.getResolveTransitively() && outputDirectory == null )
+            {
+                getLog().warn( "The dependencies of " + artifactItem.getGroupId() + ":" + artifactItem.getArtifactId()
+                    + " get instrumented in place, set an outputDirectory to keep them untouched" );
+            }
+        }
+
+        List<Future<List<Artifact>>> resolutions = new ArrayList<Future<List<Artifact>>>( artifactItems.length );
+        for ( final ArtifactItem artifactItem : artifactItems )
+        {
+            Callable<List<Artifact>> task = new Callable<List<Artifact>>()
+            {
+                public List<Artifact> call()
+                    throws MojoExecutionException
+                {
+                    return resolveArtifacts( artifactItem, excluded );
+                }
+            };
+
+            resolutions.add( resolver.submit( task ) );
         }
-        return paths;
+        return resolutions;
     }
 
-    private List<Artifact> resolveArtifacts()
+    @SuppressWarnings( "unchecked" )
+    private List<Artifact> resolveArtifacts( ArtifactItem artifactItem, Set<String> excluded )
         throws MojoExecutionException
     {
+        Artifact artifact =
+            artifactFactory.createArtifactWithClassifier( artifactItem.getGroupId(), artifactItem.getArtifactId(),
+                                                          artifactItem.getVersion(), artifactItem.getType(),
+                                                          artifactItem.getClassifier() );
+
         List<Artifact> artifacts = new ArrayList<Artifact>();
-        for ( ArtifactItem artifactItem : artifactItems )
+        try
         {
-            Artifact artifact =
-                artifactFactory.createArtifactWithClassifier( artifactItem.getGroupId(), artifactItem.getArtifactId(),
-                                                              artifactItem.getVersion(), artifactItem.getType(),
-                                                              artifactItem.getClassifier() );
-            try
+            resolver.resolve( artifact, remoteRepositories, localRepository );
+            if ( artifactItem.getInstrument() )
             {
-                resolver.resolve( artifact, remoteRepositories, localRepository );
+                artifacts.add( artifact );
             }
-            catch ( AbstractArtifactResolutionException e )
+
+            if ( artifactItem.getResolveTransitively() )
             {
-                throw new MojoExecutionException( e.getMessage(), e );
+                ArtifactResolutionResult result =
+                    resolver.resolveTransitively( Collections.singleton( artifact ), project.getArtifact(),
+                                                  localRepository, remoteRepositories, metadataSource,
+                                                  new ScopeArtifactFilter( Artifact.SCOPE_RUNTIME ) );
+
+                List<Artifact> dependencies = new ArrayList<Artifact>( (Set<Artifact>) result.getArtifacts() );
+                Collections.sort( dependencies, new Comparator<Artifact>()
+                {
+                    public int compare( Artifact a1, Artifact a2 )
+                    {
+                        return a1.getId().compareTo( a2.getId() );
+                    }
+                } );
+
+                for ( Artifact dependency : dependencies )
+                {
+                    if ( !dependency.getDependencyConflictId().equals( artifact.getDependencyConflictId() )
+                        && !excluded.contains( ArtifactUtils.versionlessKey( dependency ) )
+                        && dependency.getFile() != null )
+                    {
+                        artifacts.add( dependency );
+                    }
+                }
             }
-            artifacts.add( artifact );
+        }
+        catch ( AbstractArtifactResolutionException e )
+        {
+            throw new MojoExecutionException( e.getMessage(), e );
         }
         return artifacts;
     }
@@ -13,7 +13,11 @@ public class ArtifactItem
 
     private boolean instrument = true;
 
-    private boolean resolveTransitively = true;
+    /**
+     * Whether to instrument the runtime dependencies of the artifact too, off by default to not pull in more than
+     * asked for.
+     */
+    private boolean resolveTransitively;
 
     private String type;
 
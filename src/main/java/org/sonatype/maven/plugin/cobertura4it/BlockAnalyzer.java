@@ -0,0 +1,299 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Finds the line probes of an instrumented class that are redundant because they always execute together with the
+ * first line probe of their basic block. A block ends at every branch target, exception range, jump, switch, return,
+ * throw and method invocation, so a line only gets aliased if nothing between the two probes can transfer control
+ * elsewhere except for implicit exceptions like a {@link NullPointerException}. Lines probed from more than one place
+ * are never aliased, neither are lines whose block starts with such a line.
+ */
+class BlockAnalyzer
+    implements ClassVisitor, MethodVisitor
+{
+
+    private static final String TOUCH_COLLECTOR = "net/sourceforge/cobertura/coveragedata/TouchCollector";
+
+    private final String className;
+
+    private final String owner;
+
+    private final Map<Integer, Integer> occurrences = new HashMap<Integer, Integer>();
+
+    private final Map<Integer, Integer> candidates = new HashMap<Integer, Integer>();
+
+    private int blockLine;
+
+    private boolean pendingName;
+
+    private int pendingLine;
+
+    private boolean hasPendingLine;
+
+    private BlockAnalyzer( String className, String owner )
+    {
+        this.className = className;
+        this.owner = owner;
+    }
+
+    /**
+     * Analyzes the line probes of a class instrumented by Cobertura.
+     *
+     * @param classContent The instrumented bytecode, must not be {@code null}.
+     * @param className The fully qualified name of the class, must not be {@code null}.
+     * @return The aliased lines mapped to the line they execute together with, never {@code null}.
+     */
+    public static Map<Integer, Integer> analyze( byte[] classContent, String className )
+    {
+        // without debug info, the reader only visits the labels that start a block
+        ClassReader cr = new ClassReader( classContent );
+        BlockAnalyzer analyzer = new BlockAnalyzer( className, cr.getClassName() );
+        cr.accept( analyzer, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES );
+
+        Map<Integer, Integer> aliases = new HashMap<Integer, Integer>();
+        for ( Iterator<Map.Entry<Integer, Integer>> it = analyzer.candidates.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<Integer, Integer> candidate = it.next();
+            if ( analyzer.isUnique( candidate.getKey() ) && analyzer.isUnique( candidate.getValue() ) )
+            {
+                aliases.put( candidate.getKey(), candidate.getValue() );
+            }
+        }
+        return aliases;
+    }
+
+    private boolean isUnique( Integer line )
+    {
+        Integer count = occurrences.get( line );
+        return count != null && count.intValue() == 1;
+    }
+
+    private void line( int line )
+    {
+        Integer key = Integer.valueOf( line );
+        Integer count = occurrences.get( key );
+        occurrences.put( key, Integer.valueOf( ( count != null ) ? count.intValue() + 1 : 1 ) );
+
+        if ( blockLine < 0 )
+        {
+            blockLine = line;
+        }
+        else if ( blockLine != line )
+        {
+            candidates.put( key, Integer.valueOf( blockLine ) );
+        }
+    }
+
+    private void boundary()
+    {
+        blockLine = -1;
+        reset();
+    }
+
+    private void reset()
+    {
+        pendingName = false;
+        hasPendingLine = false;
+    }
+
+    // ClassVisitor
+
+    public void visit( int version, int access, String name, String signature, String superName, String[] interfaces )
+    {
+        // not needed
+    }
+
+    public void visitSource( String source, String debug )
+    {
+        // not needed
+    }
+
+    public void visitOuterClass( String owner, String name, String desc )
+    {
+        // not needed
+    }
+
+    public AnnotationVisitor visitAnnotation( String desc, boolean visible )
+    {
+        return null;
+    }
+
+    public void visitAttribute( Attribute attr )
+    {
+        // not needed
+    }
+
+    public void visitInnerClass( String name, String outerName, String innerName, int access )
+    {
+        // not needed
+    }
+
+    public FieldVisitor visitField( int access, String name, String desc, String signature, Object value )
+    {
+        return null;
+    }
+
+    public MethodVisitor visitMethod( int access, String name, String desc, String signature, String[] exceptions )
+    {
+        return this;
+    }
+
+    public void visitEnd()
+    {
+        boundary();
+    }
+
+    // MethodVisitor
+
+    public AnnotationVisitor visitAnnotationDefault()
+    {
+        return null;
+    }
+
+    public AnnotationVisitor visitParameterAnnotation( int parameter, String desc, boolean visible )
+    {
+        return null;
+    }
+
+    public void visitCode()
+    {
+        boundary();
+    }
+
+    public void visitFrame( int type, int nLocal, Object[] local, int nStack, Object[] stack )
+    {
+        // skipped
+    }
+
+    public void visitInsn( int opcode )
+    {
+        if ( pendingName && !hasPendingLine && opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5 )
+        {
+            pendingLine = opcode - Opcodes.ICONST_0;
+            hasPendingLine = true;
+        }
+        else if ( ( opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN ) || opcode == Opcodes.ATHROW )
+        {
+            boundary();
+        }
+        else
+        {
+            reset();
+        }
+    }
+
+    public void visitIntInsn( int opcode, int operand )
+    {
+        if ( pendingName && !hasPendingLine && ( opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH ) )
+        {
+            pendingLine = operand;
+            hasPendingLine = true;
+        }
+        else
+        {
+            reset();
+        }
+    }
+
+    public void visitVarInsn( int opcode, int var )
+    {
+        reset();
+    }
+
+    public void visitTypeInsn( int opcode, String type )
+    {
+        reset();
+    }
+
+    public void visitFieldInsn( int opcode, String owner, String name, String desc )
+    {
+        reset();
+    }
+
+    public void visitMethodInsn( int opcode, String owner, String name, String desc )
+    {
+        if ( TOUCH_COLLECTOR.equals( owner ) )
+        {
+            if ( pendingName && hasPendingLine && "touch".equals( name ) && "(Ljava/lang/String;I)V".equals( desc ) )
+            {
+                line( pendingLine );
+            }
+            // the other probes only count branches and do not end the block
+            reset();
+        }
+        else
+        {
+            // the invoked method may throw, so the following lines may not execute
+            boundary();
+        }
+    }
+
+    public void visitJumpInsn( int opcode, Label label )
+    {
+        boundary();
+    }
+
+    public void visitLabel( Label label )
+    {
+        boundary();
+    }
+
+    public void visitLdcInsn( Object cst )
+    {
+        reset();
+        pendingName = className.equals( cst ) || owner.equals( cst );
+    }
+
+    public void visitIincInsn( int var, int increment )
+    {
+        reset();
+    }
+
+    public void visitTableSwitchInsn( int min, int max, Label dflt, Label[] labels )
+    {
+        boundary();
+    }
+
+    public void visitLookupSwitchInsn( Label dflt, int[] keys, Label[] labels )
+    {
+        boundary();
+    }
+
+    public void visitMultiANewArrayInsn( String desc, int dims )
+    {
+        reset();
+    }
+
+    public void visitTryCatchBlock( Label start, Label end, Label handler, String type )
+    {
+        // the labels are visited as well
+    }
+
+    public void visitLocalVariable( String name, String desc, String signature, Label start, Label end, int index )
+    {
+        // skipped
+    }
+
+    public void visitLineNumber( int line, Label start )
+    {
+        // skipped
+    }
+
+    public void visitMaxs( int maxStack, int maxLocals )
+    {
+        // not needed
+    }
+
+}
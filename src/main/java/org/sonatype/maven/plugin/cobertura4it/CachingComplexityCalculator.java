@@ -0,0 +1,390 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javancss.FunctionMetric;
+import javancss.Javancss;
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.PackageData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.coveragedata.SourceFileData;
+import net.sourceforge.cobertura.reporting.ComplexityCalculator;
+import net.sourceforge.cobertura.util.FileFinder;
+import net.sourceforge.cobertura.util.Source;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Computes the cyclomatic complexity like Cobertura does but remembers the complexity of each source file across
+ * builds. A source file is only parsed again by JavaNCSS if its content changed, and the sources of a report are
+ * parsed in parallel upfront. Per source file, the sum of the complexity of its methods and their number are kept, so
+ * package and project averages are derived without parsing anything. Once prepared, instances are safe for use by
+ * concurrent reports.
+ */
+class CachingComplexityCalculator
+    extends ComplexityCalculator
+{
+
+    private static final String HEADER = "# cobertura4it complexity cache";
+
+    private static final Complexity NONE = new Complexity( null, 0, 0 );
+
+    private final FileFinder finder;
+
+    private final Log log;
+
+    private final Map<String, Complexity> cache = new HashMap<String, Complexity>();
+
+    private final ConcurrentMap<String, Complexity> complexities = new ConcurrentHashMap<String, Complexity>();
+
+    private final AtomicInteger parsed = new AtomicInteger();
+
+    /**
+     * Creates a new calculator with an empty cache.
+     *
+     * @param finder The finder locating the sources, must not be {@code null}. The finder is only read.
+     * @param log The log to report parser errors to, must not be {@code null}.
+     */
+    public CachingComplexityCalculator( FileFinder finder, Log log )
+    {
+        super( finder );
+        this.finder = finder;
+        this.log = log;
+    }
+
+    /**
+     * Loads the complexities saved by a previous build. Entries are only used if their source file is unchanged.
+     *
+     * @param file The cache file, must not be {@code null}. A missing file is ignored.
+     * @throws IOException If the file could not be read.
+     */
+    public void load( File file )
+        throws IOException
+    {
+        if ( !file.isFile() )
+        {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try
+        {
+            for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+            {
+                if ( line.startsWith( "#" ) || line.length() <= 0 )
+                {
+                    continue;
+                }
+
+                String[] tokens = line.split( " ", 4 );
+                if ( tokens.length != 4 )
+                {
+                    throw new IOException( "Malformed complexity cache " + file + ": " + line );
+                }
+                try
+                {
+                    cache.put( tokens[3], new Complexity( tokens[0], Long.parseLong( tokens[1] ),
+                                                          Integer.parseInt( tokens[2] ) ) );
+                }
+                catch ( NumberFormatException e )
+                {
+                    IOException ioe = new IOException( "Malformed complexity cache " + file + ": " + line );
+                    throw (IOException) ioe.initCause( e );
+                }
+            }
+        }
+        finally
+        {
+            IOUtil.close( reader );
+        }
+    }
+
+    /**
+     * Saves the complexities of all source files seen by this calculator, sorted by source file to keep the file
+     * stable between runs.
+     *
+     * @param file The cache file, must not be {@code null}.
+     * @throws IOException If the file could not be written.
+     */
+    public void save( File file )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+
+        Map<String, Complexity> sorted = new TreeMap<String, Complexity>( complexities );
+
+        BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) );
+        try
+        {
+            writer.write( HEADER );
+            writer.newLine();
+            for ( Map.Entry<String, Complexity> entry : sorted.entrySet() )
+            {
+                Complexity complexity = entry.getValue();
+                if ( complexity.getDigest() == null )
+                {
+                    // no source, nothing to remember
+                    continue;
+                }
+                writer.write( complexity.getDigest() );
+                writer.write( ' ' );
+                writer.write( String.valueOf( complexity.getCcn() ) );
+                writer.write( ' ' );
+                writer.write( String.valueOf( complexity.getMethods() ) );
+                writer.write( ' ' );
+                writer.write( entry.getKey() );
+                writer.newLine();
+            }
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+    }
+
+    /**
+     * Computes the complexity of all source files of the given project data, parsing new or changed sources in
+     * parallel.
+     *
+     * @param projectData The coverage data whose sources to process, must not be {@code null}.
+     * @param threads The number of threads to use, values less than <code>1</code> select the number of available
+     *            processors.
+     * @throws Exception If the sources could not be processed.
+     */
+    public void prepare( ProjectData projectData, int threads )
+        throws Exception
+    {
+        long start = System.currentTimeMillis();
+
+        Set<String> sourceFileNames = new LinkedHashSet<String>();
+        for ( SourceFileData sourceFile : ParallelHtmlReport.getSourceFiles( projectData ) )
+        {
+            sourceFileNames.add( sourceFile.getName() );
+        }
+
+        int count = ( threads > 0 ) ? threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( count,
+                                                                                        sourceFileNames.size() ) ) );
+        try
+        {
+            List<Future<?>> results = new ArrayList<Future<?>>( sourceFileNames.size() );
+            for ( final String sourceFileName : sourceFileNames )
+            {
+                results.add( executor.submit( new Callable<Object>()
+                {
+                    public Object call()
+                    {
+                        return getComplexity( sourceFileName );
+                    }
+                } ) );
+            }
+            for ( Future<?> result : results )
+            {
+                result.get();
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            throw ( cause instanceof Exception ) ? (Exception) cause : e;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        log.info( "Computed complexity of " + sourceFileNames.size() + " source files, parsed " + parsed.get()
+            + " in " + ( System.currentTimeMillis() - start ) + " ms" );
+    }
+
+    @Override
+    public double getCCNForProject( ProjectData projectData )
+    {
+        long ccn = 0;
+        long methods = 0;
+        for ( SourceFileData sourceFile : ParallelHtmlReport.getSourceFiles( projectData ) )
+        {
+            Complexity complexity = getComplexity( sourceFile.getName() );
+            ccn += complexity.getCcn();
+            methods += complexity.getMethods();
+        }
+        return average( ccn, methods );
+    }
+
+    @Override
+    public double getCCNForPackage( PackageData packageData )
+    {
+        long ccn = 0;
+        long methods = 0;
+        for ( Iterator<?> it = packageData.getSourceFiles().iterator(); it.hasNext(); )
+        {
+            Complexity complexity = getComplexity( ( (SourceFileData) it.next() ).getName() );
+            ccn += complexity.getCcn();
+            methods += complexity.getMethods();
+        }
+        return average( ccn, methods );
+    }
+
+    @Override
+    public double getCCNForSourceFile( SourceFileData sourceFile )
+    {
+        Complexity complexity = getComplexity( sourceFile.getName() );
+        return average( complexity.getCcn(), complexity.getMethods() );
+    }
+
+    @Override
+    public double getCCNForClass( ClassData classData )
+    {
+        // like Cobertura, a class gets the complexity of its whole source file
+        Complexity complexity = getComplexity( classData.getSourceFileName() );
+        return average( complexity.getCcn(), complexity.getMethods() );
+    }
+
+    private static double average( long ccn, long methods )
+    {
+        return ( methods > 0 ) ? (double) ccn / methods : 0;
+    }
+
+    private Complexity getComplexity( String sourceFileName )
+    {
+        if ( sourceFileName == null )
+        {
+            return NONE;
+        }
+        Complexity complexity = complexities.get( sourceFileName );
+        if ( complexity == null )
+        {
+            complexity = calculate( sourceFileName );
+            Complexity existing = complexities.putIfAbsent( sourceFileName, complexity );
+            if ( existing != null )
+            {
+                complexity = existing;
+            }
+        }
+        return complexity;
+    }
+
+    private Complexity calculate( String sourceFileName )
+    {
+        // JavaNCSS only understands Java
+        if ( !sourceFileName.endsWith( ".java" ) )
+        {
+            return NONE;
+        }
+        Source source = finder.getSource( sourceFileName );
+        if ( source == null )
+        {
+            return NONE;
+        }
+
+        byte[] content;
+        try
+        {
+            content = IOUtil.toByteArray( source.getInputStream() );
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Failed to read source " + sourceFileName + ": " + e.getMessage() );
+            return NONE;
+        }
+        finally
+        {
+            source.close();
+        }
+
+        String digest = InstrumentationManifest.toHex( InstrumentationManifest.newDigest().digest( content ) );
+        // only read once loaded, so no locking needed
+        Complexity cached = cache.get( sourceFileName );
+        if ( cached != null && digest.equals( cached.getDigest() ) )
+        {
+            return cached;
+        }
+
+        parsed.incrementAndGet();
+        long ccn = 0;
+        int methods = 0;
+        try
+        {
+            Javancss javancss = new Javancss( new ByteArrayInputStream( content ) );
+            if ( javancss.getLastErrorMessage() != null )
+            {
+                log.warn( "JavaNCSS got an error while parsing " + sourceFileName + ": "
+                    + javancss.getLastErrorMessage() );
+            }
+            List<?> metrics = javancss.getFunctionMetrics();
+            for ( Object metric : metrics )
+            {
+                ccn += ( (FunctionMetric) metric ).ccn;
+            }
+            methods = metrics.size();
+        }
+        catch ( Exception e )
+        {
+            log.warn( "Failed to compute complexity of " + sourceFileName + ": " + e.getMessage() );
+        }
+        // a failure is remembered as well, the same content would fail again
+        return new Complexity( digest, ccn, methods );
+    }
+
+    /**
+     * The accumulated complexity of the methods in a source file.
+     */
+    static class Complexity
+    {
+
+        private final String digest;
+
+        private final long ccn;
+
+        private final int methods;
+
+        Complexity( String digest, long ccn, int methods )
+        {
+            this.digest = digest;
+            this.ccn = ccn;
+            this.methods = methods;
+        }
+
+        public String getDigest()
+        {
+            return digest;
+        }
+
+        public long getCcn()
+        {
+            return ccn;
+        }
+
+        public int getMethods()
+        {
+            return methods;
+        }
+
+    }
+
+}
@@ -5,8 +5,8 @@ package org.sonatype.maven.plugin.cobertura4it;
  */
 
 import java.io.File;
+import java.io.IOException;
 
-import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
 import net.sourceforge.cobertura.coveragedata.ProjectData;
 
 import org.apache.maven.plugin.AbstractMojo;
@@ -46,6 +46,15 @@ public class CheckMojo
      */
     private String minimunBranchCoverage;
 
+    /**
+     * The Ant-like patterns of the packages to check, matched against the package name in the form
+     * <code>org/example</code>, e.g. <code>org/example/**</code>. Defaults to all packages. With coverage data in the
+     * binary format, only the classes of the selected packages are read.
+     * 
+     * @parameter
+     */
+    private String[] packages;
+
     /**
      * Executes this mojo.
      * 
@@ -55,16 +64,24 @@ public class CheckMojo
         throws MojoExecutionException
     {
         ProjectData coverageProjectData = new ProjectData();
+        PackageFilter filter = new PackageFilter( packages );
 
-        File coverage = new File( project.getBuild().getDirectory(), "/cobertura/cobertura.ser" );
-        if ( coverage.exists() )
+        File[] coverages =
+            { new File( project.getBuild().getDirectory(), "/cobertura/cobertura.ser" ),
+                new File( project.getBasedir(), "cobertura.ser" ) };
+        for ( File coverage : coverages )
         {
-            coverageProjectData.merge( CoverageDataFileHandler.loadCoverageData( coverage ) );
-        }
-        coverage = new File( project.getBasedir(), "cobertura.ser" );
-        if ( coverage.exists() )
-        {
-            coverageProjectData.merge( CoverageDataFileHandler.loadCoverageData( coverage ) );
+            if ( coverage.exists() )
+            {
+                try
+                {
+                    CoverageDataFile.mergeInto( coverageProjectData, coverage, filter );
+                }
+                catch ( IOException e )
+                {
+                    throw new MojoExecutionException( "Failed to read coverage data " + coverage, e );
+                }
+            }
         }
 
         if ( coverageProjectData.getClasses().isEmpty() )
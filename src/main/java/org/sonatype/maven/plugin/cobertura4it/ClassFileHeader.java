@@ -0,0 +1,254 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+/**
+ * A minimal class file reader that only indexes the constant pool and decodes the class header, i.e. the access flags,
+ * the class name and the implemented interfaces. This is enough to decide whether a class needs to go through the
+ * instrumenter at all, without paying for a full ASM visitor pass.
+ */
+final class ClassFileHeader
+{
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int ACC_INTERFACE = 0x0200;
+
+    private final byte[] b;
+
+    private final int[] offsets;
+
+    private final int access;
+
+    private final String className;
+
+    private final String[] interfaces;
+
+    private final int fieldsOffset;
+
+    private ClassFileHeader( byte[] b, int[] offsets, int access, String className, String[] interfaces,
+                             int fieldsOffset )
+    {
+        this.b = b;
+        this.offsets = offsets;
+        this.access = access;
+        this.className = className;
+        this.interfaces = interfaces;
+        this.fieldsOffset = fieldsOffset;
+    }
+
+    /**
+     * Parses the header of the given class file.
+     *
+     * @param b The class file contents, must not be {@code null}.
+     * @return The parsed header or {@code null} if the data is not a class file this scanner understands.
+     */
+    public static ClassFileHeader parse( byte[] b )
+    {
+        try
+        {
+            if ( b.length < 10 || readInt( b, 0 ) != MAGIC )
+            {
+                return null;
+            }
+
+            int count = readUnsignedShort( b, 8 );
+            int[] offsets = new int[count];
+            int index = 10;
+            for ( int i = 1; i < count; i++ )
+            {
+                offsets[i] = index + 1;
+                switch ( b[index] )
+                {
+                    case 1: // Utf8
+                        index += 3 + readUnsignedShort( b, index + 1 );
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        index += 3;
+                        break;
+                    case 15: // MethodHandle
+                        index += 4;
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        index += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        index += 9;
+                        i++;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+
+            int access = readUnsignedShort( b, index );
+            String className = readClass( b, offsets, index + 2 );
+            int interfaceCount = readUnsignedShort( b, index + 6 );
+            String[] interfaces = new String[interfaceCount];
+            for ( int i = 0; i < interfaceCount; i++ )
+            {
+                interfaces[i] = readClass( b, offsets, index + 8 + i * 2 );
+            }
+
+            return new ClassFileHeader( b, offsets, access, className, interfaces, index + 8 + interfaceCount * 2 );
+        }
+        catch ( ArrayIndexOutOfBoundsException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the internal name of the class, e.g. <code>java/lang/String</code>.
+     *
+     * @return The internal class name, never {@code null}.
+     */
+    public String getClassName()
+    {
+        return className;
+    }
+
+    /**
+     * Tells whether the class file describes an interface, which includes annotation types.
+     *
+     * @return {@code true} for interfaces and annotation types, {@code false} otherwise.
+     */
+    public boolean isInterface()
+    {
+        return ( access & ACC_INTERFACE ) != 0;
+    }
+
+    /**
+     * Tells whether the class directly implements the given interface.
+     *
+     * @param name The internal name of the interface, must not be {@code null}.
+     * @return {@code true} if the interface is among the declared interfaces, {@code false} otherwise.
+     */
+    public boolean implementsInterface( String name )
+    {
+        for ( String itf : interfaces )
+        {
+            if ( name.equals( itf ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the value of the <code>SourceFile</code> attribute. Unlike the header fields, this requires skipping over
+     * the fields and methods and is only done on demand.
+     *
+     * @return The source file name or {@code null} if the class file does not carry one.
+     */
+    public String getSourceFile()
+    {
+        try
+        {
+            int index = fieldsOffset;
+            for ( int members = 0; members < 2; members++ )
+            {
+                int count = readUnsignedShort( b, index );
+                index += 2;
+                for ( int i = 0; i < count; i++ )
+                {
+                    index = skipAttributes( index + 6 );
+                }
+            }
+
+            int count = readUnsignedShort( b, index );
+            index += 2;
+            for ( int i = 0; i < count; i++ )
+            {
+                if ( "SourceFile".equals( readUtf8( b, offsets, index ) ) )
+                {
+                    return readUtf8( b, offsets, index + 6 );
+                }
+                index += 6 + readInt( b, index + 2 );
+            }
+        }
+        catch ( ArrayIndexOutOfBoundsException e )
+        {
+            // truncated class file, let ASM complain about it
+        }
+        return null;
+    }
+
+    private int skipAttributes( int index )
+    {
+        int count = readUnsignedShort( b, index );
+        index += 2;
+        for ( int i = 0; i < count; i++ )
+        {
+            index += 6 + readInt( b, index + 2 );
+        }
+        return index;
+    }
+
+    private static String readClass( byte[] b, int[] offsets, int index )
+    {
+        int item = readUnsignedShort( b, index );
+        if ( item == 0 )
+        {
+            return null;
+        }
+        return readUtf8( b, offsets, offsets[item] );
+    }
+
+    private static String readUtf8( byte[] b, int[] offsets, int index )
+    {
+        int item = readUnsignedShort( b, index );
+        if ( item == 0 )
+        {
+            return null;
+        }
+
+        int offset = offsets[item];
+        int length = readUnsignedShort( b, offset );
+        int end = offset + 2 + length;
+
+        // modified UTF-8, see DataInput.readUTF()
+        char[] chars = new char[length];
+        int n = 0;
+        for ( int i = offset + 2; i < end; )
+        {
+            int c = b[i++] & 0xFF;
+            if ( c < 0x80 )
+            {
+                chars[n++] = (char) c;
+            }
+            else if ( c < 0xE0 )
+            {
+                chars[n++] = (char) ( ( ( c & 0x1F ) << 6 ) | ( b[i++] & 0x3F ) );
+            }
+            else
+            {
+                chars[n++] = (char) ( ( ( c & 0x0F ) << 12 ) | ( ( b[i++] & 0x3F ) << 6 ) | ( b[i++] & 0x3F ) );
+            }
+        }
+        return new String( chars, 0, n );
+    }
+
+    private static int readUnsignedShort( byte[] b, int index )
+    {
+        return ( ( b[index] & 0xFF ) << 8 ) | ( b[index + 1] & 0xFF );
+    }
+
+    private static int readInt( byte[] b, int index )
+    {
+        return ( ( b[index] & 0xFF ) << 24 ) | ( ( b[index + 1] & 0xFF ) << 16 ) | ( ( b[index + 2] & 0xFF ) << 8 )
+            | ( b[index + 3] & 0xFF );
+    }
+
+}
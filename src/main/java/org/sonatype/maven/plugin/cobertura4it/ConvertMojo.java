@@ -0,0 +1,90 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Converts a coverage data file between the Java serialization used by Cobertura and the compact binary format. The
+ * format of the input file is detected from its header.
+ *
+ * @goal convert
+ * @requiresProject false
+ */
+public class ConvertMojo
+    extends AbstractMojo
+{
+
+    /**
+     * The coverage data file to convert.
+     * 
+     * @parameter expression="${cobertura.input}"
+     * @required
+     */
+    private File input;
+
+    /**
+     * The file to write the converted coverage data to. Defaults to the input file, which is then replaced.
+     * 
+     * @parameter expression="${cobertura.output}"
+     */
+    private File output;
+
+    /**
+     * The format to convert to, either <code>ser</code> or <code>binary</code>.
+     * 
+     * @parameter expression="${cobertura.dataFormat}" default-value="binary"
+     */
+    private String dataFormat;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        CoverageDataFile.Format format = CoverageDataFile.getFormat( dataFormat );
+
+        if ( !input.isFile() )
+        {
+            throw new MojoExecutionException( "Coverage data " + input + " not found." );
+        }
+        if ( output == null )
+        {
+            output = input;
+        }
+
+        File tmp = null;
+        try
+        {
+            long start = System.currentTimeMillis();
+            long length = input.length();
+            ProjectData projectData = CoverageDataFile.load( input );
+
+            output.getAbsoluteFile().getParentFile().mkdirs();
+            tmp = File.createTempFile( output.getName(), ".tmp", output.getAbsoluteFile().getParentFile() );
+            CoverageDataFile.save( projectData, tmp, format );
+            output.delete();
+            if ( !tmp.renameTo( output ) )
+            {
+                throw new IOException( "Failed to replace " + output );
+            }
+
+            getLog().info( "Converted " + input + " (" + length + " bytes) to " + output + " ("
+                + output.length() + " bytes) in " + ( System.currentTimeMillis() - start ) + " ms" );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Failed to convert coverage data " + input + ": " + e.getMessage(), e );
+        }
+        finally
+        {
+            if ( tmp != null )
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.LineData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.maven.plugin.cobertura4it.runtime.CounterFile;
+import org.sonatype.maven.plugin.cobertura4it.runtime.ProbeLayout;
+
+/**
+ * Converts the raw hit counters written by the probe runtime into coverage data. Layout records are mapped back to
+ * lines, jumps and switches through the slot layout they carry, so no instrumentation metadata is needed. The
+ * resulting classes hold no method names or source file names, these come from the metadata the counters get merged
+ * with. Class id records are joined with the instrumentation metadata of their class and take the names from it.
+ */
+final class CounterFileReader
+{
+
+    private CounterFileReader()
+    {
+        // hide
+    }
+
+    /**
+     * Merges the classes of the given counter file that are accepted by the specified filter into the given project
+     * data.
+     *
+     * @param projectData The project data to merge into, must not be {@code null}.
+     * @param file The counter file, must not be {@code null}.
+     * @param filter The filter selecting the classes to merge, must not be {@code null}.
+     * @param metadata The instrumentation metadata to resolve class id records with, may be {@code null} if the file
+     *            is expected to hold only layout records.
+     * @throws IOException If the file could not be read or holds class id records but no metadata was given.
+     */
+    public static void mergeInto( ProjectData projectData, File file, PackageFilter filter, CounterMetadata metadata )
+        throws IOException
+    {
+        DataInputStream in =
+            new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 64 * 1024 ) );
+        try
+        {
+            if ( in.readInt() != CounterFile.MAGIC )
+            {
+                throw new IOException( "Not a counter file: " + file );
+            }
+            int version = in.readInt();
+            if ( version < 1 || version > CounterFile.VERSION )
+            {
+                throw new IOException( "Unsupported counter file version in " + file );
+            }
+            int end = in.readInt();
+            in.readInt();
+
+            // the end offset only covers complete records, a mapped file may have been preallocated way beyond
+            for ( int position = CounterFile.HEADER_SIZE; position < end; )
+            {
+                int length = in.readInt();
+                int slots = in.readInt();
+                // the first version only had layout records
+                int kind = ( version > 1 ) ? in.readInt() : CounterFile.LAYOUT_RECORD;
+                int read = ( version > 1 ) ? 12 : 8;
+
+                String className = null;
+                String layout = null;
+                CounterMetadata.Entry entry = null;
+                if ( kind == CounterFile.LAYOUT_RECORD )
+                {
+                    className = readChars( in );
+                    layout = readChars( in );
+                    read += 4 + className.length() * 2 + 4 + layout.length() * 2;
+                }
+                else if ( kind == CounterFile.CLASS_ID_RECORD )
+                {
+                    long classId = in.readLong();
+                    int checksum = in.readInt();
+                    read += 12;
+                    if ( metadata == null )
+                    {
+                        throw new IOException( "Counter file " + file + " requires the instrumentation metadata" );
+                    }
+                    entry = metadata.resolve( classId, checksum );
+                }
+                else
+                {
+                    throw new IOException( "Corrupt counter file " + file + ", unknown record kind " + kind );
+                }
+
+                int header = length - slots * 4;
+                if ( slots < 0 || header < read || position + length > end )
+                {
+                    throw new IOException( "Corrupt counter file " + file );
+                }
+                in.skipBytes( header - read );
+
+                long[] counters = new long[slots];
+                for ( int slot = 0; slot < slots; slot++ )
+                {
+                    counters[slot] = in.readInt() & 0xFFFFFFFFL;
+                }
+                position += length;
+
+                if ( layout != null && filter.accept( className ) )
+                {
+                    CoverageDataFile.merge( projectData, toClassData( className, parse( layout, className, file ),
+                                                                      counters, null, file ) );
+                }
+                else if ( entry != null && filter.accept( entry.getClassData().getName() ) )
+                {
+                    CoverageDataFile.merge( projectData, toClassData( entry.getClassData().getName(),
+                                                                      entry.getLayout(), counters,
+                                                                      entry.getClassData(), file ) );
+                }
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+    private static ProbeLayout parse( String layout, String className, File file )
+        throws IOException
+    {
+        try
+        {
+            return ProbeLayout.parse( layout );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            IOException ioe = new IOException( "Corrupt counter file " + file + ", bad layout for " + className );
+            throw (IOException) ioe.initCause( e );
+        }
+    }
+
+    private static ClassData toClassData( String className, ProbeLayout layout, long[] counters, ClassData metadata,
+                                          File file )
+        throws IOException
+    {
+        if ( layout.getSlotCount() != counters.length )
+        {
+            throw new IOException( "Corrupt counter file " + file + ", bad counters for " + className );
+        }
+
+        ClassData classData = new ClassData( className );
+        if ( metadata != null )
+        {
+            classData.setSourceFileName( metadata.getSourceFileName() );
+        }
+        for ( int i = 0; i < layout.getLineCount(); i++ )
+        {
+            int line = layout.getLine( i );
+            LineData lineData = ( metadata != null ) ? metadata.getLineData( line ) : null;
+            if ( lineData != null )
+            {
+                classData.addLine( line, lineData.getMethodName(), lineData.getMethodDescriptor() );
+            }
+            else
+            {
+                classData.addLine( line, null, null );
+            }
+            for ( int j = 0; j < layout.getJumpCount( i ); j++ )
+            {
+                classData.addLineJump( line, layout.getJumpNumber( i, j ) );
+            }
+            for ( int j = 0; j < layout.getSwitchCount( i ); j++ )
+            {
+                int branches = layout.getSwitchBranches( i, j );
+                classData.addLineSwitch( line, layout.getSwitchNumber( i, j ), 0, branches - 1 );
+            }
+        }
+
+        for ( int i = 0; i < layout.getLineCount(); i++ )
+        {
+            int line = layout.getLine( i );
+            CoverageDataReader.touch( classData, line, counters[layout.getLineSlot( i )] );
+            for ( int j = 0; j < layout.getJumpCount( i ); j++ )
+            {
+                int jump = layout.getJumpNumber( i, j );
+                int slot = layout.getJumpSlot( i, j );
+                CoverageDataReader.touchJump( classData, line, jump, true, counters[slot] );
+                CoverageDataReader.touchJump( classData, line, jump, false, counters[slot + 1] );
+            }
+            for ( int j = 0; j < layout.getSwitchCount( i ); j++ )
+            {
+                int sw = layout.getSwitchNumber( i, j );
+                int slot = layout.getSwitchSlot( i, j );
+                for ( int branch = -1; branch < layout.getSwitchBranches( i, j ); branch++ )
+                {
+                    CoverageDataReader.touchSwitch( classData, line, sw, branch, counters[slot + 1 + branch] );
+                }
+            }
+        }
+        return classData;
+    }
+
+    private static String readChars( DataInputStream in )
+        throws IOException
+    {
+        int length = in.readInt();
+        if ( length < 0 || length > 16 * 1024 * 1024 )
+        {
+            throw new IOException( "Corrupt counter file, bad string length " + length );
+        }
+        char[] chars = new char[length];
+        for ( int i = 0; i < length; i++ )
+        {
+            chars[i] = in.readChar();
+        }
+        return new String( chars );
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.sonatype.maven.plugin.cobertura4it.runtime.CounterFile;
+import org.sonatype.maven.plugin.cobertura4it.runtime.ProbeLayout;
+
+/**
+ * Resolves the class ids of counter file records to the instrumentation metadata of the classes. The slot layout of a
+ * class is recomputed from its metadata the first time the class is looked up. Instances are populated by one thread
+ * and can then be shared among threads.
+ */
+final class CounterMetadata
+{
+
+    private final Map<Long, ClassData> classes = new HashMap<Long, ClassData>();
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+    private final AtomicInteger unresolved = new AtomicInteger();
+
+    /**
+     * Adds the classes of the given coverage data. Classes already known are kept.
+     *
+     * @param projectData The coverage data holding the metadata of the classes, must not be {@code null}.
+     */
+    public void addClasses( ProjectData projectData )
+    {
+        for ( Iterator<?> it = projectData.getClasses().iterator(); it.hasNext(); )
+        {
+            ClassData classData = (ClassData) it.next();
+            Long id = Long.valueOf( CounterFile.classId( classData.getName() ) );
+            if ( !classes.containsKey( id ) )
+            {
+                classes.put( id, classData );
+            }
+        }
+    }
+
+    /**
+     * Looks up a class. A class whose metadata does not match the checksum is not resolved, e.g. if the metadata is
+     * from another instrumentation run.
+     *
+     * @param classId The id of the class.
+     * @param checksum The checksum of the slot layout of the class.
+     * @return The class or {@code null} if it could not be resolved.
+     */
+    public Entry resolve( long classId, int checksum )
+    {
+        Long id = Long.valueOf( classId );
+        Entry entry = entries.get( id );
+        if ( entry == null )
+        {
+            ClassData classData = classes.get( id );
+            if ( classData == null )
+            {
+                unresolved.incrementAndGet();
+                return null;
+            }
+            String layout;
+            try
+            {
+                layout = ProbeInstrumenter.getLayout( classData, Collections.<Integer, Integer> emptyMap() );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                // the class does not fit a layout, so it was never instrumented with probes
+                unresolved.incrementAndGet();
+                return null;
+            }
+            entry = new Entry( classData, ProbeLayout.parse( layout ), CounterFile.checksum( layout ) );
+            entries.put( id, entry );
+        }
+        if ( entry.checksum != checksum )
+        {
+            unresolved.incrementAndGet();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the number of lookups that could not be resolved.
+     *
+     * @return The number of unresolved lookups.
+     */
+    public int getUnresolved()
+    {
+        return unresolved.get();
+    }
+
+    /**
+     * The metadata of a class along with its slot layout.
+     */
+    static class Entry
+    {
+
+        private final ClassData classData;
+
+        private final ProbeLayout layout;
+
+        private final int checksum;
+
+        Entry( ClassData classData, ProbeLayout layout, int checksum )
+        {
+            this.classData = classData;
+            this.layout = layout;
+            this.checksum = checksum;
+        }
+
+        public ClassData getClassData()
+        {
+            return classData;
+        }
+
+        public ProbeLayout getLayout()
+        {
+            return layout;
+        }
+
+    }
+
+}
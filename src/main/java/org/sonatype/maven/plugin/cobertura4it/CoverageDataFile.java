@@ -0,0 +1,312 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.TreeSet;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.maven.plugin.cobertura4it.runtime.CounterFile;
+
+/**
+ * Loads and saves coverage data files in either of the supported formats. The format of an existing file is detected
+ * from its header, so readers work with both formats regardless of the file name.
+ */
+final class CoverageDataFile
+{
+
+    /**
+     * The on-disk formats of coverage data.
+     */
+    enum Format
+    {
+        /**
+         * The Java serialization of the {@link ProjectData} as written by Cobertura itself.
+         */
+        SER,
+
+        /**
+         * The compact format written by {@link CoverageDataWriter}.
+         */
+        BINARY,
+
+        /**
+         * The raw hit counters written by the probe runtime, see {@link CounterFileReader}. This format can only be
+         * read.
+         */
+        COUNTERS
+    }
+
+    private CoverageDataFile()
+    {
+        // hide
+    }
+
+    /**
+     * Parses the value of a <code>dataFormat</code> parameter.
+     *
+     * @param name The name of the format, case-insensitive, may be {@code null}.
+     * @return The format, never {@code null}.
+     * @throws MojoExecutionException If the name denotes no supported format.
+     */
+    public static Format getFormat( String name )
+        throws MojoExecutionException
+    {
+        Format format = null;
+        try
+        {
+            format = Format.valueOf( String.valueOf( name ).toUpperCase( Locale.ENGLISH ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // reported below
+        }
+        if ( format == null || format == Format.COUNTERS )
+        {
+            throw new MojoExecutionException( "Invalid dataFormat " + name + ", expected one of ser or binary" );
+        }
+        return format;
+    }
+
+    /**
+     * Detects the format of the given coverage data file.
+     *
+     * @param file The coverage data file, must not be {@code null}.
+     * @return The format of the file, never {@code null}.
+     * @throws IOException If the file could not be read.
+     */
+    public static Format getFormat( File file )
+        throws IOException
+    {
+        DataInputStream input = new DataInputStream( new FileInputStream( file ) );
+        try
+        {
+            int magic = input.readInt();
+            if ( magic == CoverageDataWriter.MAGIC )
+            {
+                return Format.BINARY;
+            }
+            return ( magic == CounterFile.MAGIC ) ? Format.COUNTERS : Format.SER;
+        }
+        catch ( EOFException e )
+        {
+            return Format.SER;
+        }
+        finally
+        {
+            IOUtil.close( input );
+        }
+    }
+
+    /**
+     * Loads the given coverage data file.
+     *
+     * @param file The coverage data file, must not be {@code null}.
+     * @return The coverage data, never {@code null}.
+     * @throws IOException If the file could not be read.
+     */
+    public static ProjectData load( File file )
+        throws IOException
+    {
+        if ( getFormat( file ) == Format.SER )
+        {
+            ProjectData projectData = CoverageDataFileHandler.loadCoverageData( file );
+            if ( projectData == null )
+            {
+                throw new IOException( "Failed to read coverage data " + file );
+            }
+            return projectData;
+        }
+
+        ProjectData projectData = new ProjectData();
+        mergeInto( projectData, file );
+        return projectData;
+    }
+
+    /**
+     * Loads the classes of the given coverage data file that are accepted by the specified filter. Files in the binary
+     * format are read through their index, so only the selected classes are decoded.
+     *
+     * @param file The coverage data file, must not be {@code null}.
+     * @param filter The filter selecting the classes to load, must not be {@code null}.
+     * @return The coverage data, never {@code null}.
+     * @throws IOException If the file could not be read.
+     */
+    public static ProjectData load( File file, PackageFilter filter )
+        throws IOException
+    {
+        if ( filter.acceptsAll() )
+        {
+            return load( file );
+        }
+
+        ProjectData projectData = new ProjectData();
+        mergeInto( projectData, file, filter );
+        return projectData;
+    }
+
+    /**
+     * Merges the classes of the given coverage data file that are accepted by the specified filter into the given
+     * project data.
+     *
+     * @param projectData The project data to merge into, must not be {@code null}.
+     * @param file The coverage data file, must not be {@code null}.
+     * @param filter The filter selecting the classes to merge, must not be {@code null}.
+     * @throws IOException If the file could not be read.
+     */
+    public static void mergeInto( ProjectData projectData, File file, PackageFilter filter )
+        throws IOException
+    {
+        if ( filter.acceptsAll() )
+        {
+            mergeInto( projectData, file );
+            return;
+        }
+
+        Format format = getFormat( file );
+        if ( format == Format.BINARY )
+        {
+            CoverageDataIndex.open( file ).mergeInto( projectData, filter );
+        }
+        else if ( format == Format.COUNTERS )
+        {
+            CounterFileReader.mergeInto( projectData, file, filter, null );
+        }
+        else
+        {
+            for ( Iterator<?> it = load( file ).getClasses().iterator(); it.hasNext(); )
+            {
+                ClassData classData = (ClassData) it.next();
+                if ( filter.accept( classData.getName() ) )
+                {
+                    merge( projectData, classData );
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the given coverage data file into the specified project data. Files in the binary format are streamed
+     * class by class instead of being loaded as a whole first.
+     *
+     * @param projectData The project data to merge into, must not be {@code null}.
+     * @param file The coverage data file, must not be {@code null}.
+     * @throws IOException If the file could not be read.
+     */
+    public static void mergeInto( ProjectData projectData, File file )
+        throws IOException
+    {
+        mergeInto( projectData, file, (CounterMetadata) null );
+    }
+
+    /**
+     * Merges the given coverage data file into the specified project data. Files in the binary format are streamed
+     * class by class instead of being loaded as a whole first.
+     *
+     * @param projectData The project data to merge into, must not be {@code null}.
+     * @param file The coverage data file, must not be {@code null}.
+     * @param metadata The instrumentation metadata to join the class id records of counter files with, may be
+     *            {@code null} if none is available.
+     * @throws IOException If the file could not be read.
+     */
+    public static void mergeInto( ProjectData projectData, File file, CounterMetadata metadata )
+        throws IOException
+    {
+        Format format = getFormat( file );
+        if ( format == Format.SER )
+        {
+            projectData.merge( load( file ) );
+            return;
+        }
+        if ( format == Format.COUNTERS )
+        {
+            CounterFileReader.mergeInto( projectData, file, new PackageFilter( null ), metadata );
+            return;
+        }
+
+        CoverageDataReader reader =
+            new CoverageDataReader( new BufferedInputStream( new FileInputStream( file ), 64 * 1024 ) );
+        try
+        {
+            for ( ClassData classData = reader.readClass(); classData != null; classData = reader.readClass() )
+            {
+                merge( projectData, classData );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Saves the given coverage data.
+     *
+     * @param projectData The coverage data to save, must not be {@code null}.
+     * @param file The file to write, must not be {@code null}.
+     * @param format The format to write, must not be {@code null}.
+     * @throws IOException If the file could not be written.
+     */
+    public static void save( ProjectData projectData, File file, Format format )
+        throws IOException
+    {
+        if ( format == Format.SER )
+        {
+            CoverageDataFileHandler.saveCoverageData( projectData, file );
+            return;
+        }
+        if ( format == Format.COUNTERS )
+        {
+            throw new IllegalArgumentException( "Counter files cannot be written" );
+        }
+
+        OutputStream output = new BufferedOutputStream( new FileOutputStream( file ), 64 * 1024 );
+        CoverageDataWriter writer = new CoverageDataWriter( output );
+        try
+        {
+            // sorted by name so equal coverage data yields equal files
+            for ( Iterator<?> it = new TreeSet<Object>( projectData.getClasses() ).iterator(); it.hasNext(); )
+            {
+                writer.writeClass( (ClassData) it.next() );
+            }
+            writer.close();
+        }
+        finally
+        {
+            IOUtil.close( output );
+        }
+    }
+
+    /**
+     * Merges a single class into the given project data.
+     *
+     * @param projectData The project data to merge into, must not be {@code null}.
+     * @param classData The class to merge, must not be {@code null}.
+     */
+    public static void merge( ProjectData projectData, ClassData classData )
+    {
+        ClassData existing = projectData.getClassData( classData.getName() );
+        if ( existing == null )
+        {
+            projectData.addClassData( classData );
+        }
+        else
+        {
+            existing.merge( classData );
+        }
+    }
+
+}
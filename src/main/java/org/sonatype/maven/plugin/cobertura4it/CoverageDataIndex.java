@@ -0,0 +1,239 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+/**
+ * Provides random access to the classes of a binary coverage data file. Only the index is read when the file is opened,
+ * the class records are decoded on demand from a read-only memory mapping of the file. Instances can be shared among
+ * threads.
+ */
+class CoverageDataIndex
+{
+
+    private final File file;
+
+    private final ByteBuffer buffer;
+
+    private final String[] names;
+
+    private final int[] offsets;
+
+    private final int[] lengths;
+
+    private final Map<String, Integer> positions;
+
+    private CoverageDataIndex( File file, ByteBuffer buffer, String[] names, int[] offsets, int[] lengths )
+    {
+        this.file = file;
+        this.buffer = buffer;
+        this.names = names;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        positions = new HashMap<String, Integer>( names.length * 4 / 3 + 1 );
+        for ( int i = 0; i < names.length; i++ )
+        {
+            positions.put( names[i], Integer.valueOf( i ) );
+        }
+    }
+
+    /**
+     * Opens the given binary coverage data file.
+     *
+     * @param file The coverage data file, must not be {@code null}.
+     * @return The index of the file, never {@code null}.
+     * @throws IOException If the file could not be read or is no binary coverage data file.
+     */
+    public static CoverageDataIndex open( File file )
+        throws IOException
+    {
+        ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if ( channel.size() > Integer.MAX_VALUE )
+            {
+                throw new IOException( "Coverage data " + file + " is too large to be indexed" );
+            }
+            // the mapping stays valid after the channel has been closed
+            buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        int size = buffer.limit();
+        if ( size < 5 + CoverageDataWriter.TRAILER_SIZE || buffer.getInt( 0 ) != CoverageDataWriter.MAGIC
+            || buffer.getInt( size - 4 ) != CoverageDataWriter.MAGIC )
+        {
+            throw new IOException( "Not an indexed binary coverage data file: " + file );
+        }
+
+        long index = buffer.getLong( size - CoverageDataWriter.TRAILER_SIZE );
+        if ( index < 5 || index > size - CoverageDataWriter.TRAILER_SIZE )
+        {
+            throw new IOException( "Corrupt binary coverage data " + file );
+        }
+
+        ByteBuffer slice = buffer.duplicate();
+        slice.position( (int) index ).limit( size - CoverageDataWriter.TRAILER_SIZE );
+        DataInputStream in = new DataInputStream( new ByteBufferInputStream( slice ) );
+
+        int count = (int) readVarLong( in );
+        String[] names = new String[count];
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            names[i] = in.readUTF();
+            offsets[i] = (int) readVarLong( in );
+            lengths[i] = (int) readVarLong( in );
+            if ( offsets[i] < 5 || offsets[i] + lengths[i] > index )
+            {
+                throw new IOException( "Corrupt binary coverage data " + file );
+            }
+        }
+
+        return new CoverageDataIndex( file, buffer, names, offsets, lengths );
+    }
+
+    /**
+     * Gets the names of all classes in the file.
+     *
+     * @return The class names in file order, never {@code null}.
+     */
+    public String[] getClassNames()
+    {
+        return names.clone();
+    }
+
+    /**
+     * Decodes a single class.
+     *
+     * @param name The fully qualified name of the class, must not be {@code null}.
+     * @return The class or {@code null} if the file holds no data for the class.
+     * @throws IOException If the class record could not be decoded.
+     */
+    public ClassData getClassData( String name )
+        throws IOException
+    {
+        Integer position = positions.get( name );
+        return ( position != null ) ? read( position.intValue() ) : null;
+    }
+
+    /**
+     * Decodes the classes accepted by the given filter.
+     *
+     * @param filter The filter selecting the classes to decode, must not be {@code null}.
+     * @return The coverage data of the selected classes, never {@code null}.
+     * @throws IOException If a class record could not be decoded.
+     */
+    public ProjectData load( PackageFilter filter )
+        throws IOException
+    {
+        ProjectData projectData = new ProjectData();
+        mergeInto( projectData, filter );
+        return projectData;
+    }
+
+    /**
+     * Decodes the classes accepted by the given filter and merges them into the specified project data.
+     *
+     * @param projectData The project data to merge into, must not be {@code null}.
+     * @param filter The filter selecting the classes to decode, must not be {@code null}.
+     * @throws IOException If a class record could not be decoded.
+     */
+    public void mergeInto( ProjectData projectData, PackageFilter filter )
+        throws IOException
+    {
+        for ( int i = 0; i < names.length; i++ )
+        {
+            if ( filter.accept( names[i] ) )
+            {
+                CoverageDataFile.merge( projectData, read( i ) );
+            }
+        }
+    }
+
+    private ClassData read( int position )
+        throws IOException
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position( offsets[position] ).limit( offsets[position] + lengths[position] );
+        ClassData classData = new CoverageDataReader( new ByteBufferInputStream( record ), false ).readClass();
+        if ( classData == null || !names[position].equals( classData.getName() ) )
+        {
+            throw new IOException( "Corrupt binary coverage data " + file + ", bad record for " + names[position] );
+        }
+        return classData;
+    }
+
+    private static long readVarLong( DataInputStream in )
+        throws IOException
+    {
+        long value = 0;
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            int b = in.readUnsignedByte();
+            value |= (long) ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+        throw new IOException( "Corrupt binary coverage data, malformed number" );
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    private static class ByteBufferInputStream
+        extends InputStream
+    {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream( ByteBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? ( buffer.get() & 0xFF ) : -1;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len )
+        {
+            if ( !buffer.hasRemaining() )
+            {
+                return -1;
+            }
+            int n = Math.min( len, buffer.remaining() );
+            buffer.get( b, off, n );
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            return buffer.remaining();
+        }
+
+    }
+
+}
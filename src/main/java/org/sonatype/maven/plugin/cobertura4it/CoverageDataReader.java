@@ -0,0 +1,231 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+
+/**
+ * Reads coverage data written by {@link CoverageDataWriter}, one class at a time.
+ */
+class CoverageDataReader
+{
+
+    private final DataInputStream in;
+
+    private final List<String> strings = new ArrayList<String>();
+
+    /**
+     * Creates a new reader and checks the stream header.
+     *
+     * @param in The stream to read from, must not be {@code null}. The stream should be buffered.
+     * @throws IOException If the header could not be read or does not denote a supported format.
+     */
+    public CoverageDataReader( InputStream in )
+        throws IOException
+    {
+        this( in, true );
+    }
+
+    /**
+     * Creates a new reader.
+     *
+     * @param in The stream to read from, must not be {@code null}.
+     * @param header {@code true} if the stream starts with the header, {@code false} if it is positioned at a record.
+     * @throws IOException If the header could not be read or does not denote a supported format.
+     */
+    CoverageDataReader( InputStream in, boolean header )
+        throws IOException
+    {
+        this.in = new DataInputStream( in );
+        if ( !header )
+        {
+            return;
+        }
+        if ( this.in.readInt() != CoverageDataWriter.MAGIC )
+        {
+            throw new IOException( "Not a binary coverage data file" );
+        }
+        int version = this.in.readUnsignedByte();
+        if ( version != CoverageDataWriter.VERSION )
+        {
+            throw new IOException( "Unsupported binary coverage data version " + version );
+        }
+    }
+
+    /**
+     * Reads the next class.
+     *
+     * @return The next class or {@code null} if the end of the stream has been reached.
+     * @throws IOException If the class could not be read.
+     */
+    public ClassData readClass()
+        throws IOException
+    {
+        int tag = in.readUnsignedByte();
+        if ( tag == 0 )
+        {
+            return null;
+        }
+        if ( tag != CoverageDataWriter.CLASS )
+        {
+            throw new IOException( "Corrupt binary coverage data, unexpected record " + tag );
+        }
+
+        strings.clear();
+        ClassData classData = new ClassData( readString() );
+        String sourceFile = readString();
+        if ( sourceFile != null )
+        {
+            classData.setSourceFileName( sourceFile );
+        }
+        if ( ( readVarInt() & CoverageDataWriter.INSTRUMENTED ) != 0 )
+        {
+            classData.setContainsInstrumentationInfo();
+        }
+
+        int n = readVarInt();
+        int[] lines = new int[n];
+        long[] hits = new long[n];
+        int previous = 0;
+        for ( int i = 0; i < n; i++ )
+        {
+            lines[i] = previous + readVarInt();
+            previous = lines[i];
+        }
+        for ( int i = 0; i < n; i++ )
+        {
+            hits[i] = readVarLong();
+        }
+        for ( int i = 0; i < n; i++ )
+        {
+            classData.addLine( lines[i], readString(), readString() );
+        }
+        int[] conditions = new int[n];
+        for ( int i = 0; i < n; i++ )
+        {
+            conditions[i] = readVarInt();
+        }
+
+        for ( int i = 0; i < n; i++ )
+        {
+            touch( classData, lines[i], hits[i] );
+
+            for ( int j = 0; j < conditions[i]; j++ )
+            {
+                int type = in.readUnsignedByte();
+                if ( type == CoverageDataWriter.JUMP )
+                {
+                    int number = readVarInt();
+                    classData.addLineJump( lines[i], number );
+                    touchJump( classData, lines[i], number, true, readVarLong() );
+                    touchJump( classData, lines[i], number, false, readVarLong() );
+                }
+                else if ( type == CoverageDataWriter.SWITCH )
+                {
+                    int number = readVarInt();
+                    int branches = readVarInt();
+                    classData.addLineSwitch( lines[i], number, 0, branches - 1 );
+                    touchSwitch( classData, lines[i], number, -1, readVarLong() );
+                    for ( int k = 0; k < branches; k++ )
+                    {
+                        touchSwitch( classData, lines[i], number, k, readVarLong() );
+                    }
+                }
+                else
+                {
+                    throw new IOException( "Corrupt binary coverage data, unexpected condition " + type );
+                }
+            }
+        }
+
+        return classData;
+    }
+
+    /**
+     * Closes the underlying stream.
+     */
+    public void close()
+    {
+        try
+        {
+            in.close();
+        }
+        catch ( IOException e )
+        {
+            // ignored
+        }
+    }
+
+    // the touch methods take int increments, so larger counts are applied in chunks
+
+    static void touch( ClassData classData, int line, long hits )
+    {
+        for ( ; hits > 0; hits -= Integer.MAX_VALUE )
+        {
+            classData.touch( line, (int) Math.min( hits, Integer.MAX_VALUE ) );
+        }
+    }
+
+    static void touchJump( ClassData classData, int line, int number, boolean branch, long hits )
+    {
+        for ( ; hits > 0; hits -= Integer.MAX_VALUE )
+        {
+            classData.touchJump( line, number, branch, (int) Math.min( hits, Integer.MAX_VALUE ) );
+        }
+    }
+
+    static void touchSwitch( ClassData classData, int line, int number, int branch, long hits )
+    {
+        for ( ; hits > 0; hits -= Integer.MAX_VALUE )
+        {
+            classData.touchSwitch( line, number, branch, (int) Math.min( hits, Integer.MAX_VALUE ) );
+        }
+    }
+
+    private String readString()
+        throws IOException
+    {
+        int ref = readVarInt();
+        if ( ref == 0 )
+        {
+            return null;
+        }
+        int index = ref - 1;
+        if ( index == strings.size() )
+        {
+            strings.add( in.readUTF() );
+        }
+        else if ( index > strings.size() )
+        {
+            throw new IOException( "Corrupt binary coverage data, unknown string " + index );
+        }
+        return strings.get( index );
+    }
+
+    private int readVarInt()
+        throws IOException
+    {
+        return (int) readVarLong();
+    }
+
+    private long readVarLong()
+        throws IOException
+    {
+        long value = 0;
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            int b = in.readUnsignedByte();
+            value |= (long) ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+        throw new IOException( "Corrupt binary coverage data, malformed number" );
+    }
+
+}
@@ -0,0 +1,214 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.JumpData;
+import net.sourceforge.cobertura.coveragedata.LineData;
+import net.sourceforge.cobertura.coveragedata.SwitchData;
+
+/**
+ * Writes coverage data in a compact binary format, one class at a time. The stream starts with a magic number and a
+ * version, followed by one record per class and a terminating zero byte. Strings are interned per record: each string
+ * is written once, the first time the record references it, and afterwards only by its index in the string table. A
+ * class record holds its lines as columns of varint-encoded primitives, i.e. the delta-encoded line numbers, the hit
+ * counts and the method references, followed by the branch counters of the lines that have conditions.
+ * <p>
+ * Records are self-contained, so after the terminating byte the writer appends an index with the name, offset and
+ * length of each record, followed by a fixed-size trailer holding the offset of the index and the magic number. This
+ * lets {@link CoverageDataIndex} decode single classes without reading the whole file, while the stream can still be
+ * written in one pass. Use {@link CoverageDataReader} to read the data back sequentially.
+ */
+class CoverageDataWriter
+{
+
+    static final int MAGIC = 0x43344954; // "C4IT"
+
+    static final int VERSION = 1;
+
+    static final int CLASS = 1;
+
+    static final int JUMP = 1;
+
+    static final int SWITCH = 2;
+
+    static final int INSTRUMENTED = 0x01;
+
+    static final int TRAILER_SIZE = 12;
+
+    private final DataOutputStream out;
+
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+    private final List<String> names = new ArrayList<String>();
+
+    private final List<Long> offsets = new ArrayList<Long>();
+
+    /**
+     * Creates a new writer and writes the stream header.
+     *
+     * @param out The stream to write to, must not be {@code null}. The stream should be buffered.
+     * @throws IOException If the header could not be written.
+     */
+    public CoverageDataWriter( OutputStream out )
+        throws IOException
+    {
+        this.out = new DataOutputStream( out );
+        this.out.writeInt( MAGIC );
+        this.out.writeByte( VERSION );
+    }
+
+    /**
+     * Writes the given class.
+     *
+     * @param classData The class to write, must not be {@code null}.
+     * @throws IOException If the class could not be written.
+     */
+    public void writeClass( ClassData classData )
+        throws IOException
+    {
+        LineData[] lines = new LineData[classData.getLines().size()];
+        int n = 0;
+        for ( Iterator<?> it = classData.getLines().iterator(); it.hasNext(); )
+        {
+            lines[n++] = (LineData) it.next();
+        }
+
+        strings.clear();
+        names.add( classData.getName() );
+        offsets.add( Long.valueOf( out.size() ) );
+
+        out.writeByte( CLASS );
+        writeString( classData.getName() );
+        writeString( classData.getSourceFileName() );
+        writeVarInt( classData.containsInstrumentationInfo() ? INSTRUMENTED : 0 );
+
+        writeVarInt( n );
+        int previous = 0;
+        for ( int i = 0; i < n; i++ )
+        {
+            // lines are sorted, so the deltas stay small
+            writeVarInt( lines[i].getLineNumber() - previous );
+            previous = lines[i].getLineNumber();
+        }
+        for ( int i = 0; i < n; i++ )
+        {
+            writeVarLong( lines[i].getHits() );
+        }
+        for ( int i = 0; i < n; i++ )
+        {
+            writeString( lines[i].getMethodName() );
+            writeString( lines[i].getMethodDescriptor() );
+        }
+        for ( int i = 0; i < n; i++ )
+        {
+            writeVarInt( lines[i].getConditionSize() );
+        }
+
+        for ( int i = 0; i < n; i++ )
+        {
+            for ( int j = 0; j < lines[i].getConditionSize(); j++ )
+            {
+                Object condition = lines[i].getConditionData( j );
+                if ( condition instanceof JumpData )
+                {
+                    JumpData jump = (JumpData) condition;
+                    out.writeByte( JUMP );
+                    writeVarInt( jump.getConditionNumber() );
+                    writeVarLong( jump.getTrueHits() );
+                    writeVarLong( jump.getFalseHits() );
+                }
+                else
+                {
+                    SwitchData sw = (SwitchData) condition;
+                    int branches = sw.getNumberOfValidBranches() - 1; // the default branch is counted separately
+                    out.writeByte( SWITCH );
+                    writeVarInt( sw.getSwitchNumber() );
+                    writeVarInt( branches );
+                    writeVarLong( sw.getDefaultHits() );
+                    for ( int k = 0; k < branches; k++ )
+                    {
+                        writeVarLong( sw.getHits( k ) );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the end of the stream, the index and the trailer and flushes the stream. The underlying stream is not
+     * closed.
+     *
+     * @throws IOException If the stream could not be written.
+     */
+    public void close()
+        throws IOException
+    {
+        out.writeByte( 0 );
+
+        long index = out.size();
+        writeVarInt( names.size() );
+        for ( int i = 0; i < names.size(); i++ )
+        {
+            long end = ( i + 1 < names.size() ) ? offsets.get( i + 1 ).longValue() : index - 1;
+            out.writeUTF( names.get( i ) );
+            writeVarLong( offsets.get( i ).longValue() );
+            writeVarInt( (int) ( end - offsets.get( i ).longValue() ) );
+        }
+
+        out.writeLong( index );
+        out.writeInt( MAGIC );
+        out.flush();
+    }
+
+    /**
+     * Writes a string reference. <code>0</code> denotes {@code null}, other values are the index of the string in the
+     * table plus one, with the index that would extend the table followed by the string itself.
+     */
+    private void writeString( String value )
+        throws IOException
+    {
+        if ( value == null )
+        {
+            writeVarInt( 0 );
+            return;
+        }
+
+        Integer index = strings.get( value );
+        if ( index != null )
+        {
+            writeVarInt( index.intValue() + 1 );
+            return;
+        }
+
+        index = Integer.valueOf( strings.size() );
+        strings.put( value, index );
+        writeVarInt( index.intValue() + 1 );
+        out.writeUTF( value );
+    }
+
+    private void writeVarInt( int value )
+        throws IOException
+    {
+        writeVarLong( value & 0xFFFFFFFFL );
+    }
+
+    private void writeVarLong( long value )
+        throws IOException
+    {
+        while ( ( value & ~0x7FL ) != 0 )
+        {
+            out.writeByte( (int) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        out.writeByte( (int) value );
+    }
+
+}
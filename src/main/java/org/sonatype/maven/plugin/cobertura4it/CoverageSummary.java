@@ -0,0 +1,171 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.PackageData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.reporting.ComplexityCalculator;
+
+/**
+ * An immutable digest of the coverage per project, package and class. It is gathered in one walk over the coverage
+ * data, summing up the counts of the classes instead of letting Cobertura recount the lines of every class for each
+ * package and the project, and is then shared by all reports rendered from it.
+ */
+final class CoverageSummary
+{
+
+    private CoverageSummary()
+    {
+        // hide
+    }
+
+    /**
+     * Gathers the summary of the given coverage data.
+     *
+     * @param projectData The coverage data, must not be {@code null}. The data is only read.
+     * @param complexity The complexity calculator, must not be {@code null}.
+     * @return The summary of the project, never {@code null}.
+     */
+    public static Node of( ProjectData projectData, ComplexityCalculator complexity )
+    {
+        List<Node> packages = new ArrayList<Node>();
+        for ( Iterator<?> it = projectData.getPackages().iterator(); it.hasNext(); )
+        {
+            PackageData packageData = (PackageData) it.next();
+
+            List<Node> classes = new ArrayList<Node>();
+            for ( Iterator<?> cit = packageData.getClasses().iterator(); cit.hasNext(); )
+            {
+                ClassData classData = (ClassData) cit.next();
+                classes.add( new Node( classData.getName(), classData.getNumberOfCoveredLines(),
+                                       classData.getNumberOfValidLines(), classData.getNumberOfCoveredBranches(),
+                                       classData.getNumberOfValidBranches(), complexity.getCCNForClass( classData ),
+                                       Collections.<Node> emptyList() ) );
+            }
+
+            packages.add( sum( packageData.getName(), complexity.getCCNForPackage( packageData ), classes ) );
+        }
+
+        return sum( "", complexity.getCCNForProject( projectData ), packages );
+    }
+
+    private static Node sum( String name, double complexity, List<Node> children )
+    {
+        int coveredLines = 0;
+        int validLines = 0;
+        int coveredBranches = 0;
+        int validBranches = 0;
+        for ( Node child : children )
+        {
+            coveredLines += child.getCoveredLines();
+            validLines += child.getValidLines();
+            coveredBranches += child.getCoveredBranches();
+            validBranches += child.getValidBranches();
+        }
+        return new Node( name, coveredLines, validLines, coveredBranches, validBranches, complexity, children );
+    }
+
+    /**
+     * The coverage of the project, a package or a class.
+     */
+    static class Node
+    {
+
+        private final String name;
+
+        private final int coveredLines;
+
+        private final int validLines;
+
+        private final int coveredBranches;
+
+        private final int validBranches;
+
+        private final double complexity;
+
+        private final List<Node> children;
+
+        Node( String name, int coveredLines, int validLines, int coveredBranches, int validBranches,
+              double complexity, List<Node> children )
+        {
+            this.name = name;
+            this.coveredLines = coveredLines;
+            this.validLines = validLines;
+            this.coveredBranches = coveredBranches;
+            this.validBranches = validBranches;
+            this.complexity = complexity;
+            this.children = Collections.unmodifiableList( children );
+        }
+
+        /**
+         * Gets the name of the package or class.
+         *
+         * @return The name, empty for the project and the default package, never {@code null}.
+         */
+        public String getName()
+        {
+            return ( name != null ) ? name : "";
+        }
+
+        public int getCoveredLines()
+        {
+            return coveredLines;
+        }
+
+        public int getValidLines()
+        {
+            return validLines;
+        }
+
+        public int getCoveredBranches()
+        {
+            return coveredBranches;
+        }
+
+        public int getValidBranches()
+        {
+            return validBranches;
+        }
+
+        /**
+         * Gets the line coverage rate, like Cobertura <code>1</code> if there are no lines.
+         *
+         * @return The line coverage rate between <code>0</code> and <code>1</code>.
+         */
+        public double getLineRate()
+        {
+            return ( validLines > 0 ) ? (double) coveredLines / validLines : 1;
+        }
+
+        /**
+         * Gets the branch coverage rate, like Cobertura <code>1</code> if there are no branches.
+         *
+         * @return The branch coverage rate between <code>0</code> and <code>1</code>.
+         */
+        public double getBranchRate()
+        {
+            return ( validBranches > 0 ) ? (double) coveredBranches / validBranches : 1;
+        }
+
+        public double getComplexity()
+        {
+            return complexity;
+        }
+
+        /**
+         * Gets the packages of the project or the classes of a package.
+         *
+         * @return The nested nodes, never {@code null}.
+         */
+        public List<Node> getChildren()
+        {
+            return children;
+        }
+
+    }
+
+}
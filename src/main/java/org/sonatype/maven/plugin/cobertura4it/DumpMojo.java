@@ -0,0 +1,166 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.maven.plugin.cobertura4it.runtime.CounterFile;
+import org.sonatype.maven.plugin.cobertura4it.runtime.ProbeControl;
+
+/**
+ * Pulls the counters from a running JVM whose classes were instrumented in one of the probe modes and writes them as a
+ * counter file to the shard directory, where the <code>merge</code> goal picks them up. The JVM must have been started
+ * with the system property <code>cobertura4it.controlPort</code>, which makes it listen for dump requests on that port
+ * of its loopback interface. This collects coverage from a long-running server, e.g. once per test suite, without
+ * restarting it.
+ *
+ * @goal dump
+ */
+public class DumpMojo
+    extends AbstractMojo
+{
+
+    /**
+     * The host running the instrumented JVM. The JVM only listens on its loopback interface, so a remote JVM is reached
+     * through a tunnel.
+     * 
+     * @parameter expression="${cobertura.controlHost}" default-value="localhost"
+     */
+    private String controlHost;
+
+    /**
+     * The port given to the instrumented JVM with the system property <code>cobertura4it.controlPort</code>.
+     * 
+     * @parameter expression="${cobertura.controlPort}"
+     * @required
+     */
+    private int controlPort;
+
+    /**
+     * Whether to reset the counters after dumping them. With the reset, each dump only holds the hits since the
+     * previous one and the counter file written when the JVM shuts down only holds the remaining hits, so all of them
+     * can be merged. Without the reset, merging a dump along with a later dump or the final counter file counts the
+     * same hits twice.
+     * 
+     * @parameter expression="${cobertura.reset}" default-value="true"
+     */
+    private boolean reset;
+
+    /**
+     * The timeout in milliseconds for connecting to the JVM and for each read.
+     * 
+     * @parameter expression="${cobertura.controlTimeout}" default-value="60000"
+     */
+    private int controlTimeout;
+
+    /**
+     * The directory to write the counter file to.
+     * 
+     * @parameter expression="${cobertura.shardDirectory}" default-value="${project.build.directory}/cobertura/shards"
+     * @required
+     */
+    private File shardDirectory;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        shardDirectory.mkdirs();
+        String name = "cobertura-dump-" + controlHost.replaceAll( "[^a-zA-Z0-9._-]", "_" ) + "-" + controlPort + "-"
+            + Long.toString( System.currentTimeMillis(), 36 );
+        File file = new File( shardDirectory, name + CounterFile.SUFFIX );
+        File tmp = new File( shardDirectory, name + ".tmp" );
+
+        try
+        {
+            long start = System.currentTimeMillis();
+            long length = dump( tmp );
+            if ( length < CounterFile.HEADER_SIZE
+                || CoverageDataFile.getFormat( tmp ) != CoverageDataFile.Format.COUNTERS )
+            {
+                throw new IOException( "No counters received, is the JVM instrumented in a probe mode?" );
+            }
+            long end = readEnd( tmp );
+            if ( length != end )
+            {
+                // the counters are lost if the JVM reset them, but a truncated file would break every later merge
+                throw new IOException( "Incomplete counters received, got " + length + " of " + end + " bytes" );
+            }
+            if ( !tmp.renameTo( file ) )
+            {
+                throw new IOException( "Failed to create " + file );
+            }
+
+            getLog().info( "Dumped " + length + " bytes of counters from " + controlHost + ":" + controlPort + " to "
+                + file + " in " + ( System.currentTimeMillis() - start ) + " ms" );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Failed to dump counters from " + controlHost + ":" + controlPort + ": "
+                + e.getMessage(), e );
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Reads the end offset from the header of a counter file, which the JVM sets to the full length of a dump.
+     */
+    private static long readEnd( File file )
+        throws IOException
+    {
+        DataInputStream input = new DataInputStream( new FileInputStream( file ) );
+        try
+        {
+            input.skipBytes( 8 );
+            return input.readInt() & 0xFFFFFFFFL;
+        }
+        finally
+        {
+            IOUtil.close( input );
+        }
+    }
+
+    private long dump( File file )
+        throws IOException
+    {
+        Socket socket = new Socket();
+        try
+        {
+            socket.setSoTimeout( controlTimeout );
+            socket.connect( new InetSocketAddress( controlHost, controlPort ), controlTimeout );
+
+            OutputStream command = socket.getOutputStream();
+            command.write( ( ( reset ? ProbeControl.DUMP_RESET : ProbeControl.DUMP ) + "\n" ).getBytes( "US-ASCII" ) );
+            command.flush();
+
+            InputStream input = new BufferedInputStream( socket.getInputStream(), 64 * 1024 );
+            OutputStream output = new FileOutputStream( file );
+            try
+            {
+                IOUtil.copy( input, output, 64 * 1024 );
+            }
+            finally
+            {
+                IOUtil.close( output );
+            }
+        }
+        finally
+        {
+            socket.close();
+        }
+        return file.length();
+    }
+
+}
@@ -0,0 +1,98 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Copies files between channels without pulling their contents onto the heap.
+ */
+final class FileTransfer
+{
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private FileTransfer()
+    {
+        // static helpers only
+    }
+
+    /**
+     * Tells whether the destination already is a copy of the source, judged by size and modification time.
+     *
+     * @param source The source file, must not be {@code null}.
+     * @param dest The destination file, must not be {@code null}.
+     * @return {@code true} if the destination can be left alone, {@code false} otherwise.
+     */
+    public static boolean isUpToDate( File source, File dest )
+    {
+        return dest.isFile() && dest.length() == source.length() && dest.lastModified() == source.lastModified();
+    }
+
+    /**
+     * Copies the source file to the destination using {@link FileChannel#transferTo(long, long,
+     * java.nio.channels.WritableByteChannel)}, falling back to a buffered copy if the channel stops transferring, and
+     * carries over the modification time so that {@link #isUpToDate(File, File)} recognizes the copy on the next run.
+     *
+     * @param source The source file, must not be {@code null}.
+     * @param dest The destination file, must not be {@code null}.
+     * @throws IOException If the file could not be copied.
+     */
+    public static void copy( File source, File dest )
+        throws IOException
+    {
+        dest.getParentFile().mkdirs();
+
+        FileInputStream input = new FileInputStream( source );
+        FileOutputStream output = null;
+        try
+        {
+            output = new FileOutputStream( dest );
+
+            FileChannel in = input.getChannel();
+            FileChannel out = output.getChannel();
+
+            long position = 0;
+            while ( position < in.size() )
+            {
+                long transferred = in.transferTo( position, in.size() - position, out );
+                if ( transferred <= 0 )
+                {
+                    // some platforms and channels refuse to transfer, copy the rest through a buffer instead
+                    copy( in, position, out );
+                    break;
+                }
+                position += transferred;
+            }
+        }
+        finally
+        {
+            IOUtil.close( input );
+            IOUtil.close( output );
+        }
+
+        dest.setLastModified( source.lastModified() );
+    }
+
+    private static void copy( FileChannel in, long position, FileChannel out )
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE );
+        for ( int read = in.read( buffer, position ); read >= 0; read = in.read( buffer, position ) )
+        {
+            position += read;
+            buffer.flip();
+            while ( buffer.hasRemaining() )
+            {
+                out.write( buffer );
+            }
+            buffer.clear();
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sourceforge.cobertura.util.FileFinder;
+import net.sourceforge.cobertura.util.Source;
+
+/**
+ * A file finder that answers lookups from an in-memory index instead of probing every source directory on the
+ * filesystem. The source directories are scanned once and each file is indexed under its path relative to every source
+ * directory containing it, the earliest source directory winning like with the plain finder. Sources missing under
+ * their Java name are looked up with alternative extensions, e.g. for ActionScript classes. Once created, instances are
+ * safe for use by concurrent reports.
+ */
+class IndexedFileFinder
+    extends FileFinder
+{
+
+    private final Map<String, File> files = new HashMap<String, File>();
+
+    private final String[] extensions;
+
+    /**
+     * Creates a new finder by scanning the given source directories.
+     *
+     * @param sourcePath The source directories, in order of precedence, must not be {@code null}.
+     * @param extensions The extensions to try in place of <code>.java</code> if a source is missing, must not be
+     *            {@code null}.
+     */
+    public IndexedFileFinder( List<File> sourcePath, String... extensions )
+    {
+        this.extensions = extensions;
+
+        Map<File, Integer> ranks = new HashMap<File, Integer>();
+        for ( File directory : sourcePath )
+        {
+            File absolute = directory.getAbsoluteFile();
+            if ( !ranks.containsKey( absolute ) )
+            {
+                ranks.put( absolute, Integer.valueOf( ranks.size() ) );
+            }
+            addSourceDirectory( absolute.getPath() );
+        }
+
+        List<File> found = new ArrayList<File>();
+        Set<File> visited = new HashSet<File>();
+        for ( File directory : ranks.keySet() )
+        {
+            collect( directory, visited, found );
+        }
+
+        Map<String, Integer> fileRanks = new HashMap<String, Integer>();
+        for ( File file : found )
+        {
+            // index the file relative to each source directory above it, no filesystem access needed
+            String path = file.getName();
+            for ( File parent = file.getParentFile(); parent != null; parent = parent.getParentFile() )
+            {
+                Integer rank = ranks.get( parent );
+                if ( rank != null )
+                {
+                    Integer previous = fileRanks.get( path );
+                    if ( previous == null || previous.intValue() > rank.intValue() )
+                    {
+                        fileRanks.put( path, rank );
+                        files.put( path, file );
+                    }
+                }
+                path = parent.getName() + '/' + path;
+            }
+        }
+    }
+
+    private static void collect( File directory, Set<File> visited, List<File> found )
+    {
+        try
+        {
+            // guards against symlink cycles and nested source directories being walked twice
+            if ( !visited.add( directory.getCanonicalFile() ) )
+            {
+                return;
+            }
+        }
+        catch ( IOException e )
+        {
+            return;
+        }
+
+        File[] children = directory.listFiles();
+        if ( children == null )
+        {
+            return;
+        }
+        for ( File child : children )
+        {
+            if ( child.isDirectory() )
+            {
+                collect( child, visited, found );
+            }
+            else
+            {
+                found.add( child );
+            }
+        }
+    }
+
+    /**
+     * Gets the number of indexed source paths.
+     *
+     * @return The number of indexed source paths.
+     */
+    public int size()
+    {
+        return files.size();
+    }
+
+    @Override
+    public File getFileForSource( String fileName )
+    {
+        String path = fileName.replace( '\\', '/' );
+        File file = files.get( path );
+        if ( file == null && path.endsWith( ".java" ) )
+        {
+            String base = path.substring( 0, path.length() - 5 );
+            for ( int i = 0; file == null && i < extensions.length; i++ )
+            {
+                file = files.get( base + extensions[i] );
+            }
+        }
+        return file;
+    }
+
+    @Override
+    public Source getSource( String fileName )
+    {
+        File file = getFileForSource( fileName );
+        if ( file == null )
+        {
+            return null;
+        }
+        try
+        {
+            return new Source( new FileInputStream( file ), file );
+        }
+        catch ( FileNotFoundException e )
+        {
+            // deleted since the scan
+            return null;
+        }
+    }
+
+}
@@ -27,17 +27,23 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
-import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
+import net.sourceforge.cobertura.coveragedata.ClassData;
 import net.sourceforge.cobertura.coveragedata.ProjectData;
-import net.sourceforge.cobertura.instrument.NonDummClassInstrumenter;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.ArtifactUtils;
@@ -49,8 +55,7 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.DirectoryScanner;
 import org.codehaus.plexus.util.IOUtil;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
+import org.sonatype.maven.plugin.cobertura4it.runtime.CoverageShard;
 
 /**
  * Offline class instrumentor.
@@ -139,6 +144,123 @@ public class InstrumentMojo
      */
     private Collection<Pattern> ignoreBranchesRegexes = new Vector<Pattern>();
 
+    /**
+     * The Ant-like patterns of the classes to instrument, matched against the class name in the form
+     * <code>org/example/Foo.class</code>. Defaults to all classes.
+     * 
+     * @parameter
+     */
+    private String[] includes;
+
+    /**
+     * The Ant-like patterns of the classes to exclude from instrumentation, matched against the class name in the form
+     * <code>org/example/Foo.class</code>. Excluded classes are copied as is and do not show up in the coverage data.
+     * 
+     * @parameter
+     */
+    private String[] excludes;
+
+    /**
+     * The number of threads used to instrument classes. Each class is instrumented into its own coverage metadata
+     * which is merged in scan order afterwards, so the output does not depend on this setting. Values less than
+     * <code>1</code> select the number of available processors.
+     * 
+     * @parameter expression="${cobertura.instrumentThreads}" default-value="0"
+     */
+    private int instrumentThreads;
+
+    /**
+     * Indicates whether classes whose bytecode and instrumentation config did not change since the previous run should
+     * keep their instrumented output and coverage metadata instead of being instrumented again. Output files whose
+     * input has been deleted are removed as well.
+     * 
+     * @parameter expression="${cobertura.incremental}" default-value="true"
+     */
+    private boolean incremental;
+
+    /**
+     * The format of the coverage metadata written by this goal, either <code>ser</code> for the Java serialization
+     * used by Cobertura itself or <code>binary</code> for a compact format that is smaller and faster to load. The
+     * goals reading coverage data detect the format from the file header.
+     * 
+     * @parameter expression="${cobertura.dataFormat}" default-value="ser"
+     */
+    private String dataFormat;
+
+    /**
+     * The directory for per-JVM coverage shards. If set, the instrumented classes make the Cobertura runtime of each
+     * JVM write its coverage data to a file of its own in this directory, instead of all JVMs locking, re-reading and
+     * rewriting one shared data file at shutdown. The <code>merge</code> goal collects the shards from the same
+     * directory. The shards of earlier test runs are deleted when instrumenting. The directory can be overridden at
+     * runtime with the system property <code>cobertura4it.shardDirectory</code>.
+     * 
+     * @parameter expression="${cobertura.shardDirectory}"
+     */
+    private File shardDirectory;
+
+    /**
+     * How the instrumented classes count their hits, one of <code>cobertura</code> to call the Cobertura runtime, which
+     * looks up the coverage data of the class in a synchronized map on every probe, <code>mapped</code> to count the
+     * hits of each class in a slot range of a memory-mapped counter file, <code>atomic</code> to count them without
+     * locks and without losing concurrent hits in counters striped by thread, which suits heavily multi-threaded tests,
+     * or <code>boolean</code> to only record whether a line or branch was executed at all by setting a flag inline,
+     * which is the cheapest mode and reports hit counts of zero or one. The probe modes resolve the slot of each probe
+     * at instrumentation time. The counter files are written to the <code>shardDirectory</code>, which defaults to
+     * <code>${project.build.directory}/cobertura/shards</code> for the probe modes, and read by the <code>merge</code>
+     * goal. The size of the memory-mapped counter file can be set at runtime with the system property
+     * <code>cobertura4it.counterFileSize</code>, classes not fitting in fall back to counters on the heap.
+     * 
+     * @parameter expression="${cobertura.probes}" default-value="cobertura"
+     */
+    private String probes;
+
+    /**
+     * Where the probe modes place the line probes, either <code>line</code> for a probe per line, or <code>block</code>
+     * to drop the probes of lines that always execute together with the first probed line of their basic block. The
+     * dropped lines are counted from the remaining probe when the counters are read, which shrinks the instrumented
+     * methods and saves probe executions in straight-line code. A line is only dropped if neither a branch nor a
+     * method call lies between it and the remaining probe, so only implicit exceptions such as a
+     * <code>NullPointerException</code> can make its count differ from the line placement.
+     * 
+     * @parameter expression="${cobertura.probePlacement}" default-value="line"
+     */
+    private String probePlacement;
+
+    /**
+     * The internal name of the runtime class configuring the coverage shards.
+     */
+    private static final String SHARD_RUNTIME = CoverageShard.class.getName().replace( '.', '/' );
+
+    /**
+     * The manifest being recorded by the current run.
+     */
+    private InstrumentationManifest manifest;
+
+    /**
+     * The manifest recorded by the previous run, empty if none.
+     */
+    private InstrumentationManifest previousManifest;
+
+    /**
+     * The metadata written by the previous run, {@code null} if it cannot be reused.
+     */
+    private ProjectData previousData;
+
+    /**
+     * The digest of the instrumentation config.
+     */
+    private byte[] configDigest;
+
+    /**
+     * The instrumenter shared by all worker threads.
+     */
+    private Instrumenter instrumenter;
+
+    /**
+     * The instrumenter rewriting the probes, {@code null} to keep the probes of Cobertura.
+     */
+    private ProbeInstrumenter probeInstrumenter;
+
     /**
      * Add cobertura dependency to project test classpath. When tests are executed, cobertura runtime dependency is
      * required.
@@ -200,33 +322,190 @@ public class InstrumentMojo
             return;
         }
 
+        CoverageDataFile.Format format = CoverageDataFile.getFormat( dataFormat );
+
         if ( instrumentationPaths == null )
         {
             instrumentationPaths = new File[] { new File( project.getBuild().getOutputDirectory() ) };
         }
 
-        getLog().info( "Instrumenting classes with cobertura" );
+        File coberturaFolder = new File( project.getBuild().getDirectory(), "cobertura" );
+        File dataFile = new File( coberturaFolder, "cobertura.ser" );
+        File manifestFile = new File( coberturaFolder, "instrument.manifest" );
+
+        loadPreviousRun( manifestFile, dataFile );
+
+        int threads = instrumentThreads > 0 ? instrumentThreads : Runtime.getRuntime().availableProcessors();
+
+        getLog().info( "Instrumenting classes with cobertura using " + threads + " thread(s)" );
         ProjectData projectData = new ProjectData();
 
-        for ( File path : instrumentationPaths )
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool( threads ) : null;
+        try
         {
-            instrumentPath( projectData, path );
+            for ( File path : instrumentationPaths )
+            {
+                instrumentPath( projectData, path, executor );
+            }
+        }
+        finally
+        {
+            if ( executor != null )
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        pruneDeletedFiles();
+
+        if ( shardDirectory != null || probeInstrumenter != null )
+        {
+            installRuntime();
         }
 
-        File coberturaFolder = new File( project.getBuild().getDirectory(), "cobertura" );
         if ( !coberturaFolder.exists() )
         {
             coberturaFolder.mkdirs();
         }
 
-        CoverageDataFileHandler.saveCoverageData( projectData, new File( coberturaFolder, "cobertura.ser" ) );
+        try
+        {
+            CoverageDataFile.save( projectData, dataFile, format );
+            // the pristine copy serves as the base of the merge goal, which overwrites the data file
+            FileTransfer.copy( dataFile, new File( coberturaFolder, "instrumentation.ser" ) );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Failed to save coverage metadata " + dataFile, e );
+        }
+
+        if ( incremental )
+        {
+            manifest.setMetadata( dataFile );
+            try
+            {
+                manifest.save( manifestFile );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Failed to save instrumentation manifest " + manifestFile, e );
+            }
+        }
+        else
+        {
+            manifestFile.delete();
+        }
 
         // prepare test execution by adding Cobertura dependencies
         addCoberturaDependenciesToTestClasspath();
 
     }
 
-    private void instrumentPath( ProjectData projectData, File path )
+    private void loadPreviousRun( File manifestFile, File dataFile )
+        throws MojoExecutionException
+    {
+        probeInstrumenter = ProbeInstrumenter.forMode( probes, probePlacement );
+        if ( probeInstrumenter != null && shardDirectory == null )
+        {
+            shardDirectory = new File( project.getBuild().getDirectory(), "cobertura/shards" );
+        }
+
+        // the probe modes bypass the Cobertura runtime, so its data file needs no redirection
+        String initializer = ( shardDirectory != null && probeInstrumenter == null ) ? SHARD_RUNTIME : null;
+        instrumenter =
+            new Instrumenter( ignoreRegexes, ignoreBranchesRegexes, includes, excludes, initializer,
+                              probeInstrumenter );
+        manifest = new InstrumentationManifest();
+        configDigest = instrumenter.digestConfig();
+        previousData = null;
+
+        try
+        {
+            previousManifest = InstrumentationManifest.load( manifestFile );
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Ignoring unreadable instrumentation manifest " + manifestFile + ": " + e.getMessage() );
+            previousManifest = new InstrumentationManifest();
+        }
+
+        if ( !incremental || previousManifest.isEmpty() )
+        {
+            return;
+        }
+
+        if ( previousManifest.matches( dataFile ) )
+        {
+            try
+            {
+                previousData = CoverageDataFile.load( dataFile );
+            }
+            catch ( IOException e )
+            {
+                getLog().warn( "Ignoring unreadable coverage metadata " + dataFile + ": " + e.getMessage() );
+            }
+        }
+        else
+        {
+            getLog().info( "Coverage metadata " + dataFile + " changed since last instrumentation, "
+                + "instrumenting all classes" );
+        }
+    }
+
+    private void installRuntime()
+        throws MojoExecutionException
+    {
+        if ( probeInstrumenter != null )
+        {
+            getLog().info( "Writing " + probeInstrumenter.getMode() + " hit counters to " + shardDirectory );
+        }
+        else
+        {
+            getLog().info( "Writing coverage shards to " + shardDirectory );
+        }
+
+        int cleared = RuntimeSupport.clearShards( shardDirectory );
+        if ( cleared > 0 )
+        {
+            getLog().info( "Deleted " + cleared + " coverage shard(s) of earlier test runs" );
+        }
+
+        try
+        {
+            for ( Map.Entry<String, byte[]> entry : RuntimeSupport.getEntries( shardDirectory ).entrySet() )
+            {
+                File file = new File( outputDirectory, entry.getKey() );
+                file.getParentFile().mkdirs();
+                OutputStream output = new FileOutputStream( file );
+                try
+                {
+                    IOUtil.copy( entry.getValue(), output );
+                }
+                finally
+                {
+                    IOUtil.close( output );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Failed to install instrumentation runtime: " + e.getMessage(), e );
+        }
+    }
+
+    private void pruneDeletedFiles()
+    {
+        for ( String file : previousManifest.getPaths() )
+        {
+            if ( manifest.get( file ) == null )
+            {
+                getLog().debug( "Removing output of deleted file " + file );
+                new File( outputDirectory, file ).delete();
+            }
+        }
+    }
+
+    private void instrumentPath( ProjectData projectData, final File path, ExecutorService executor )
         throws MojoExecutionException
     {
         if ( !path.exists() )
@@ -240,49 +519,139 @@ public class InstrumentMojo
         scan.addDefaultExcludes();
         scan.scan();
 
+        String[] files = scan.getIncludedFiles();
         try
         {
-            String[] files = scan.getIncludedFiles();
-            for ( String file : files )
+            if ( executor == null )
             {
-                FileInputStream input = new FileInputStream( new File( path, file ) );
-
-                File dest = new File( outputDirectory, file );
-                dest.getParentFile().mkdirs();
-                FileOutputStream output = new FileOutputStream( dest );
-
-                try
+                for ( String file : files )
                 {
+                    instrumentFile( projectData, path, file );
+                }
+                return;
+            }
 
-                    byte[] classContent = IOUtil.toByteArray( input );
-                    if ( classContent.length > 8 // ClassReader tries to read the eighth byte
-                        && file.endsWith( ".class" ) )
+            List<Future<ProjectData>> shards = new ArrayList<Future<ProjectData>>( files.length );
+            for ( final String file : files )
+            {
+                shards.add( executor.submit( new Callable<ProjectData>()
+                {
+                    public ProjectData call()
+                        throws IOException
                     {
-                        ClassReader cr = new ClassReader( classContent );
-                        ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_MAXS );
-                        NonDummClassInstrumenter cv =
-                            new NonDummClassInstrumenter( projectData, cw, ignoreRegexes, ignoreBranchesRegexes );
-                        cr.accept( cv, 0 );
-
-                        if ( cv.isInstrumented() )
-                        {
-                            classContent = cw.toByteArray();
-                        }
+                        ProjectData shard = new ProjectData();
+                        instrumentFile( shard, path, file );
+                        return shard;
                     }
+                } ) );
+            }
 
-                    IOUtil.copy( classContent, output );
-                }
-                finally
-                {
-                    IOUtil.close( input );
-                    IOUtil.close( output );
-                }
-
+            // merge in scan order so the metadata is identical to a single-threaded run
+            for ( Future<ProjectData> shard : shards )
+            {
+                projectData.merge( shard.get() );
             }
         }
         catch ( IOException e )
         {
             throw new MojoExecutionException( e.getMessage(), e );
         }
+        catch ( InterruptedException e )
+        {
+            throw new MojoExecutionException( "Interrupted while instrumenting " + path, e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new MojoExecutionException( e.getCause().getMessage(), e.getCause() );
+        }
+    }
+
+    private void instrumentFile( ProjectData projectData, File path, String file )
+        throws IOException
+    {
+        File source = new File( path, file );
+        File dest = new File( outputDirectory, file );
+
+        if ( source.length() <= 8 // ClassReader tries to read the eighth byte
+            || !file.endsWith( ".class" ) )
+        {
+            // resources are never touched, copy them channel to channel unless the previous copy is still current
+            if ( !FileTransfer.isUpToDate( source, dest ) )
+            {
+                FileTransfer.copy( source, dest );
+            }
+            manifest.put( file, null, null );
+            return;
+        }
+
+        FileInputStream input = new FileInputStream( source );
+        byte[] classContent;
+        try
+        {
+            classContent = IOUtil.toByteArray( input );
+        }
+        finally
+        {
+            IOUtil.close( input );
+        }
+
+        String digest = InstrumentationManifest.digest( configDigest, classContent );
+        if ( reusePreviousRun( projectData, file, digest, dest ) )
+        {
+            return;
+        }
+
+        byte[] instrumented = instrumenter.instrument( projectData, classContent );
+        if ( instrumented != null )
+        {
+            classContent = instrumented;
+        }
+
+        String className = file.substring( 0, file.length() - ".class".length() );
+        manifest.put( file, digest, className.replace( File.separatorChar, '.' ) );
+
+        dest.getParentFile().mkdirs();
+        FileOutputStream output = new FileOutputStream( dest );
+        try
+        {
+            IOUtil.copy( classContent, output );
+        }
+        finally
+        {
+            IOUtil.close( output );
+        }
+    }
+
+    private boolean reusePreviousRun( ProjectData projectData, String file, String digest, File dest )
+    {
+        if ( previousData == null )
+        {
+            return false;
+        }
+
+        InstrumentationManifest.Entry entry = previousManifest.get( file );
+        if ( entry == null || !digest.equals( entry.getDigest() ) || !dest.isFile() )
+        {
+            return false;
+        }
+
+        ClassData classData = previousData.getClassData( entry.getClassName() );
+        if ( classData == null )
+        {
+            return false;
+        }
+
+        ClassData existing = projectData.getClassData( classData.getName() );
+        if ( existing == null )
+        {
+            projectData.addClassData( classData );
+        }
+        else
+        {
+            existing.merge( classData );
+        }
+
+        manifest.put( file, entry );
+        return true;
     }
 }
@@ -0,0 +1,279 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * A content-addressed cache of instrumented JARs and their coverage metadata. Entries are keyed by a digest of the
+ * plugin version, the instrumentation config and the bytes of the input JAR. Each entry consists of the instrumented
+ * JAR, absent if instrumentation left the JAR unchanged, and an entry file which is written last and marks the entry as
+ * complete. The entry file explicitly records whether the entry has a JAR, followed by the metadata in the binary
+ * coverage data format. All files are written to a temporary name and renamed into place, so several builds may share
+ * the cache directory. A published file is never replaced or deleted, as any other build publishes the same content.
+ */
+class InstrumentationCache
+{
+
+    private static final int MAGIC = 0x43344943; // "C4IC"
+
+    private static final int VERSION = 1;
+
+    private static final int UNCHANGED = 0;
+
+    private static final int INSTRUMENTED = 1;
+
+    private final File directory;
+
+    private final String pluginVersion;
+
+    private final byte[] configDigest;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param directory The base directory of the cache, must not be {@code null}.
+     * @param pluginVersion The version of this plugin, may be {@code null}.
+     * @param configDigest The digest of the instrumentation config, must not be {@code null}.
+     */
+    public InstrumentationCache( File directory, String pluginVersion, byte[] configDigest )
+    {
+        this.directory = directory;
+        this.pluginVersion = String.valueOf( pluginVersion );
+        this.configDigest = configDigest;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Calculates the cache key for the given JAR.
+     *
+     * @param jar The JAR to instrument, must not be {@code null}.
+     * @return The cache key, never {@code null}.
+     * @throws IOException If the JAR could not be read.
+     */
+    public String getKey( File jar )
+        throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+            digest.update( pluginVersion.getBytes( "UTF-8" ) );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e.getMessage() );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e.getMessage() );
+        }
+        digest.update( (byte) 0 );
+        digest.update( configDigest );
+
+        InputStream input = new FileInputStream( jar );
+        try
+        {
+            byte[] buffer = new byte[64 * 1024];
+            for ( int n = input.read( buffer ); n >= 0; n = input.read( buffer ) )
+            {
+                digest.update( buffer, 0, n );
+            }
+        }
+        finally
+        {
+            IOUtil.close( input );
+        }
+
+        return InstrumentationManifest.toHex( digest.digest() );
+    }
+
+    /**
+     * Looks up a cache entry.
+     *
+     * @param key The cache key, must not be {@code null}.
+     * @return The cache entry or {@code null} if the cache has no complete entry for the key.
+     */
+    public Entry get( String key )
+    {
+        File file = getFile( key, ".entry" );
+        if ( !file.isFile() )
+        {
+            return null;
+        }
+
+        File jar = null;
+        ProjectData projectData = new ProjectData();
+        try
+        {
+            DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try
+            {
+                if ( input.readInt() != MAGIC || input.readInt() != VERSION )
+                {
+                    return null;
+                }
+                if ( input.readByte() == INSTRUMENTED )
+                {
+                    jar = getFile( key, ".jar" );
+                    if ( !jar.isFile() )
+                    {
+                        // the entry promises a JAR, never mistake its absence for an unchanged JAR
+                        return null;
+                    }
+                }
+                CoverageDataReader reader = new CoverageDataReader( input );
+                for ( ClassData classData = reader.readClass(); classData != null; classData = reader.readClass() )
+                {
+                    CoverageDataFile.merge( projectData, classData );
+                }
+            }
+            finally
+            {
+                IOUtil.close( input );
+            }
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+
+        return new Entry( projectData, jar );
+    }
+
+    /**
+     * Stores a cache entry unless the cache already has one for the key.
+     *
+     * @param key The cache key, must not be {@code null}.
+     * @param instrumented The instrumented JAR or {@code null} if instrumentation did not change the input JAR.
+     * @param projectData The metadata of the JAR, must not be {@code null}.
+     * @throws IOException If the entry could not be written.
+     */
+    public void put( String key, File instrumented, ProjectData projectData )
+        throws IOException
+    {
+        File jar = getFile( key, ".jar" );
+        File file = getFile( key, ".entry" );
+        file.getParentFile().mkdirs();
+
+        if ( instrumented != null )
+        {
+            File tmp = File.createTempFile( key, ".tmp", jar.getParentFile() );
+            try
+            {
+                FileTransfer.copy( instrumented, tmp );
+                publish( tmp, jar );
+            }
+            finally
+            {
+                tmp.delete();
+            }
+        }
+
+        File tmp = File.createTempFile( key, ".tmp", file.getParentFile() );
+        try
+        {
+            DataOutputStream output = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+            try
+            {
+                output.writeInt( MAGIC );
+                output.writeInt( VERSION );
+                output.writeByte( ( instrumented != null ) ? INSTRUMENTED : UNCHANGED );
+                CoverageDataWriter writer = new CoverageDataWriter( output );
+                // sorted by name so equal metadata yields equal entries
+                for ( Iterator<?> it = new TreeSet<Object>( projectData.getClasses() ).iterator(); it.hasNext(); )
+                {
+                    writer.writeClass( (ClassData) it.next() );
+                }
+                writer.close();
+            }
+            finally
+            {
+                IOUtil.close( output );
+            }
+            publish( tmp, file );
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    private void publish( File tmp, File file )
+        throws IOException
+    {
+        // entries are content-addressed, so an existing file already has the right content
+        if ( file.isFile() )
+        {
+            return;
+        }
+        if ( !tmp.renameTo( file ) && !file.isFile() )
+        {
+            throw new IOException( "Failed to write cache entry " + file );
+        }
+    }
+
+    private File getFile( String key, String extension )
+    {
+        return new File( directory, key.substring( 0, 2 ) + File.separator + key + extension );
+    }
+
+    /**
+     * A complete cache entry.
+     */
+    static class Entry
+    {
+
+        private final ProjectData projectData;
+
+        private final File jar;
+
+        Entry( ProjectData projectData, File jar )
+        {
+            this.projectData = projectData;
+            this.jar = jar;
+        }
+
+        /**
+         * Gets the coverage metadata of the instrumented JAR.
+         *
+         * @return The coverage metadata, never {@code null}.
+         */
+        public ProjectData getMetadata()
+        {
+            return projectData;
+        }
+
+        /**
+         * Gets the cached instrumented JAR.
+         *
+         * @return The cached JAR or {@code null} if instrumentation did not change the input JAR.
+         */
+        public File getJar()
+        {
+            return jar;
+        }
+
+    }
+
+}
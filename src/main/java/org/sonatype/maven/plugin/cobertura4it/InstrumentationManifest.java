@@ -0,0 +1,275 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Records, for every file written by the <code>instrument</code> goal, a digest of its input bytecode and the
+ * instrumentation config together with the name of the class it contains. The manifest also remembers the size and
+ * timestamp of the coverage metadata written alongside it, so a later run can tell whether that metadata still is the
+ * one produced by instrumentation or has been replaced, e.g. by the <code>merge</code> goal.
+ */
+class InstrumentationManifest
+{
+
+    private static final String HEADER = "# cobertura4it instrumentation manifest";
+
+    private static final String METADATA = "@metadata ";
+
+    private static final String NONE = "-";
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private long metadataLength = -1;
+
+    private long metadataTimestamp = -1;
+
+    /**
+     * The digest and class name recorded for a single output file.
+     */
+    static class Entry
+    {
+
+        private final String digest;
+
+        private final String className;
+
+        Entry( String digest, String className )
+        {
+            this.digest = digest;
+            this.className = className;
+        }
+
+        public String getDigest()
+        {
+            return digest;
+        }
+
+        public String getClassName()
+        {
+            return className;
+        }
+
+    }
+
+    public Entry get( String path )
+    {
+        return entries.get( path );
+    }
+
+    public void put( String path, Entry entry )
+    {
+        entries.put( path, entry );
+    }
+
+    public void put( String path, String digest, String className )
+    {
+        entries.put( path, new Entry( digest, className ) );
+    }
+
+    public Set<String> getPaths()
+    {
+        return entries.keySet();
+    }
+
+    public boolean isEmpty()
+    {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Tells whether the given metadata file is still the one this manifest was saved with.
+     *
+     * @param metadataFile The coverage metadata file, must not be {@code null}.
+     * @return {@code true} if the file is unchanged since the manifest was saved, {@code false} otherwise.
+     */
+    public boolean matches( File metadataFile )
+    {
+        return metadataFile.isFile() && metadataFile.length() == metadataLength
+            && metadataFile.lastModified() == metadataTimestamp;
+    }
+
+    public void setMetadata( File metadataFile )
+    {
+        metadataLength = metadataFile.length();
+        metadataTimestamp = metadataFile.lastModified();
+    }
+
+    /**
+     * Loads a manifest previously written by {@link #save(File)}.
+     *
+     * @param file The manifest file, must not be {@code null}.
+     * @return The loaded manifest or an empty one if the file does not exist, never {@code null}.
+     * @throws IOException If the file could not be read.
+     */
+    public static InstrumentationManifest load( File file )
+        throws IOException
+    {
+        InstrumentationManifest manifest = new InstrumentationManifest();
+
+        if ( !file.isFile() )
+        {
+            return manifest;
+        }
+
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try
+        {
+            for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+            {
+                if ( line.startsWith( "#" ) || line.length() <= 0 )
+                {
+                    continue;
+                }
+                if ( line.startsWith( METADATA ) )
+                {
+                    String[] stamp = line.substring( METADATA.length() ).split( " " );
+                    manifest.metadataLength = Long.parseLong( stamp[0] );
+                    manifest.metadataTimestamp = Long.parseLong( stamp[1] );
+                    continue;
+                }
+
+                String[] tokens = line.split( " ", 3 );
+                if ( tokens.length != 3 )
+                {
+                    throw new IOException( "Malformed instrumentation manifest " + file + ": " + line );
+                }
+                manifest.put( tokens[2], new Entry( NONE.equals( tokens[0] ) ? null : tokens[0],
+                                                    NONE.equals( tokens[1] ) ? null : tokens[1] ) );
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            throw (IOException) new IOException( "Malformed instrumentation manifest " + file ).initCause( e );
+        }
+        finally
+        {
+            IOUtil.close( reader );
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Saves this manifest, sorted by path to keep the file stable between runs.
+     *
+     * @param file The manifest file, must not be {@code null}.
+     * @throws IOException If the file could not be written.
+     */
+    public void save( File file )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+
+        BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) );
+        try
+        {
+            writer.write( HEADER );
+            writer.newLine();
+            writer.write( METADATA + metadataLength + " " + metadataTimestamp );
+            writer.newLine();
+            for ( Map.Entry<String, Entry> entry : new TreeMap<String, Entry>( entries ).entrySet() )
+            {
+                Entry value = entry.getValue();
+                writer.write( value.getDigest() != null ? value.getDigest() : NONE );
+                writer.write( ' ' );
+                writer.write( value.getClassName() != null ? value.getClassName() : NONE );
+                writer.write( ' ' );
+                writer.write( entry.getKey() );
+                writer.newLine();
+            }
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+    }
+
+    /**
+     * Calculates the digest identifying the instrumentation config, i.e. the regexes handed to the instrumenter.
+     *
+     * @param regexes The regex collections, must not be {@code null}.
+     * @return The config digest, never {@code null}.
+     */
+    public static byte[] digestConfig( Collection<?>... regexes )
+    {
+        MessageDigest digest = newDigest();
+        for ( Collection<?> collection : regexes )
+        {
+            for ( Object regex : collection )
+            {
+                update( digest, String.valueOf( regex ) );
+                digest.update( (byte) 0 );
+            }
+            digest.update( (byte) 1 );
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Calculates the digest of a class file under the given instrumentation config.
+     *
+     * @param config The config digest as returned by {@link #digestConfig(Collection...)}, must not be {@code null}.
+     * @param content The input bytecode, must not be {@code null}.
+     * @return The hex encoded digest, never {@code null}.
+     */
+    public static String digest( byte[] config, byte[] content )
+    {
+        MessageDigest digest = newDigest();
+        digest.update( config );
+        digest.update( content );
+        return toHex( digest.digest() );
+    }
+
+    static String toHex( byte[] bytes )
+    {
+        StringBuilder buffer = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            buffer.append( Character.forDigit( ( b >> 4 ) & 0x0F, 16 ) );
+            buffer.append( Character.forDigit( b & 0x0F, 16 ) );
+        }
+        return buffer.toString();
+    }
+
+    private static void update( MessageDigest digest, String value )
+    {
+        try
+        {
+            digest.update( value.getBytes( "UTF-8" ) );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e.getMessage() );
+        }
+    }
+
+    static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e.getMessage() );
+        }
+    }
+
+}
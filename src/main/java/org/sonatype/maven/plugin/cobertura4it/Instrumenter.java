@@ -0,0 +1,180 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.instrument.NonDummClassInstrumenter;
+
+import org.codehaus.plexus.util.SelectorUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Instruments single class files for both the <code>instrument</code> and the <code>instrument-artifact</code> goal.
+ * Before building the ASM visitor chain, the class header is scanned to filter classes by name and to pass through
+ * classes the instrumenter would leave untouched anyway, i.e. interfaces, annotation types and classes that have
+ * already been instrumented. Instances are immutable and can be shared among threads.
+ */
+class Instrumenter
+{
+
+    private static final String HAS_BEEN_INSTRUMENTED = "net/sourceforge/cobertura/coveragedata/HasBeenInstrumented";
+
+    private final Collection<Pattern> ignoreRegexes;
+
+    private final Collection<Pattern> ignoreBranchesRegexes;
+
+    private final String[] includes;
+
+    private final String[] excludes;
+
+    private final String initializer;
+
+    private final ProbeInstrumenter probes;
+
+    /**
+     * Creates a new instrumenter.
+     *
+     * @param ignoreRegexes The regexes handed to the cobertura instrumenter, must not be {@code null}.
+     * @param ignoreBranchesRegexes The branch regexes handed to the cobertura instrumenter, must not be {@code null}.
+     * @param includes The Ant-like patterns of the class files to instrument, may be {@code null} to include all.
+     * @param excludes The Ant-like patterns of the class files not to instrument, may be {@code null} to exclude none.
+     * @param initializer The internal name of a class whose static <code>init()</code> method instrumented classes
+     *            call from their static initializer, may be {@code null} for none.
+     * @param probes The instrumenter rewriting the probes of Cobertura, may be {@code null} to keep them.
+     */
+    public Instrumenter( Collection<Pattern> ignoreRegexes, Collection<Pattern> ignoreBranchesRegexes,
+                         String[] includes, String[] excludes, String initializer, ProbeInstrumenter probes )
+    {
+        this.ignoreRegexes = ignoreRegexes;
+        this.ignoreBranchesRegexes = ignoreBranchesRegexes;
+        this.includes = normalize( includes );
+        this.excludes = normalize( excludes );
+        this.initializer = initializer;
+        this.probes = probes;
+    }
+
+    /**
+     * Instruments the given class, recording its metadata into the specified project data.
+     *
+     * @param projectData The project data to record the class metadata into, must not be {@code null}.
+     * @param classContent The original bytecode of the class, must not be {@code null}.
+     * @return The instrumented bytecode or {@code null} if the class is to be kept as is.
+     */
+    public byte[] instrument( ProjectData projectData, byte[] classContent )
+    {
+        if ( classContent.length <= 8 ) // ClassReader tries to read the eighth byte
+        {
+            return null;
+        }
+
+        ClassFileHeader header = ClassFileHeader.parse( classContent );
+        if ( header != null )
+        {
+            if ( !isIncluded( header.getClassName() ) )
+            {
+                return null;
+            }
+
+            if ( header.isInterface() || header.implementsInterface( HAS_BEEN_INSTRUMENTED ) )
+            {
+                // record the same metadata the instrumenter would, without visiting the class
+                ClassData classData = projectData.getOrCreateClassData( header.getClassName().replace( '/', '.' ) );
+                classData.setContainsInstrumentationInfo();
+                String sourceFile = header.getSourceFile();
+                if ( sourceFile != null )
+                {
+                    classData.setSourceFileName( sourceFile );
+                }
+                return null;
+            }
+        }
+
+        ClassReader cr = new ClassReader( classContent );
+        ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_MAXS );
+        NonDummClassInstrumenter cv =
+            new NonDummClassInstrumenter( projectData, cw, ignoreRegexes, ignoreBranchesRegexes, initializer );
+        cr.accept( cv, 0 );
+
+        if ( !cv.isInstrumented() )
+        {
+            return null;
+        }
+        if ( probes == null )
+        {
+            return cw.toByteArray();
+        }
+        ClassData classData = projectData.getClassData( cr.getClassName().replace( '/', '.' ) );
+        return ( classData != null ) ? probes.rewrite( cw.toByteArray(), classData ) : cw.toByteArray();
+    }
+
+    /**
+     * Gets a digest of the configuration affecting the instrumented output.
+     *
+     * @return The config digest, never {@code null}.
+     */
+    public byte[] digestConfig()
+    {
+        Collection<String> runtime = Collections.singleton( String.valueOf( initializer ) );
+        if ( probes != null )
+        {
+            runtime = Arrays.asList( String.valueOf( initializer ), probes.getMode() );
+        }
+        return InstrumentationManifest.digestConfig( ignoreRegexes, ignoreBranchesRegexes, asList( includes ),
+                                                     asList( excludes ), runtime );
+    }
+
+    private boolean isIncluded( String className )
+    {
+        String path = className.replace( '/', File.separatorChar ) + ".class";
+
+        if ( includes != null && !matches( includes, path ) )
+        {
+            return false;
+        }
+        return excludes == null || !matches( excludes, path );
+    }
+
+    private static boolean matches( String[] patterns, String path )
+    {
+        for ( String pattern : patterns )
+        {
+            if ( SelectorUtils.matchPath( pattern, path ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] normalize( String[] patterns )
+    {
+        if ( patterns == null || patterns.length <= 0 )
+        {
+            return null;
+        }
+
+        String[] normalized = new String[patterns.length];
+        for ( int i = 0; i < patterns.length; i++ )
+        {
+            String pattern = patterns[i].trim().replace( '/', File.separatorChar ).replace( '\\', File.separatorChar );
+            if ( pattern.endsWith( File.separator ) )
+            {
+                pattern += "**";
+            }
+            normalized[i] = pattern;
+        }
+        return normalized;
+    }
+
+    private static Collection<String> asList( String[] patterns )
+    {
+        return ( patterns == null ) ? Collections.<String> emptyList() : Arrays.asList( patterns );
+    }
+
+}
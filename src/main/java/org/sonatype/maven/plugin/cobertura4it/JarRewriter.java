@@ -0,0 +1,838 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Rewrites a JAR file based on its central directory. Entries whose contents do not change are copied as raw
+ * compressed data together with their original CRC and sizes, only entries that actually get modified are inflated
+ * and deflated again. ZIP64 archives are not supported.
+ */
+class JarRewriter
+{
+
+    /**
+     * Decides about the new contents of the entries. Implementations must be thread-safe when used with an executor.
+     */
+    interface EntryTransformer
+    {
+
+        /**
+         * Tells whether the contents of the given entry need to be inspected at all.
+         *
+         * @param name The name of the entry, never {@code null}.
+         * @return {@code true} to inflate the entry and pass it to {@link #transform(String, byte[], ProjectData)},
+         *         {@code false} to copy it as is.
+         */
+        boolean isCandidate( String name );
+
+        /**
+         * Transforms the contents of an entry.
+         *
+         * @param name The name of the entry, never {@code null}.
+         * @param content The uncompressed contents of the entry, never {@code null}.
+         * @param projectData The project data to record the class metadata into, never {@code null}.
+         * @return The new contents or {@code null} to keep the entry unchanged.
+         * @throws IOException If the entry could not be transformed.
+         */
+        byte[] transform( String name, byte[] content, ProjectData projectData )
+            throws IOException;
+
+    }
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+
+    private static final int CENTRAL_HEADER = 0x02014b50;
+
+    private static final int END_HEADER = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int END_HEADER_SIZE = 22;
+
+    private static final int FLAG_ENCRYPTED = 0x01;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+
+    private static final int FLAG_UTF8 = 0x800;
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    /**
+     * The MS-DOS date of 1980-01-01.
+     */
+    private static final int DOS_EPOCH = ( 1 << 5 ) | 1;
+
+    /**
+     * The number of entries the reader may run ahead of the writer when transforming on an executor.
+     */
+    private static final int WINDOW = 256;
+
+    /**
+     * How the entries of the rewritten archive are compressed.
+     */
+    enum Compression
+    {
+        /**
+         * Modified entries are deflated, all other entries are copied as is.
+         */
+        DEFLATE,
+
+        /**
+         * All entries are stored uncompressed, unmodified deflated entries are inflated for that.
+         */
+        STORE,
+
+        /**
+         * Modified entries keep the compression method of their original, all other entries are copied as is.
+         */
+        KEEP
+    }
+
+    private final File file;
+
+    private final Compression compression;
+
+    private final int level;
+
+    /**
+     * Creates a new rewriter for the specified archive which deflates modified entries with the default level.
+     *
+     * @param file The archive to read, must not be {@code null}.
+     */
+    public JarRewriter( File file )
+    {
+        this( file, Compression.DEFLATE, Deflater.DEFAULT_COMPRESSION );
+    }
+
+    /**
+     * Creates a new rewriter for the specified archive.
+     *
+     * @param file The archive to read, must not be {@code null}.
+     * @param compression The compression of the rewritten entries, must not be {@code null}.
+     * @param level The deflate level from <code>0</code> to <code>9</code> or <code>-1</code> for the default.
+     */
+    public JarRewriter( File file, Compression compression, int level )
+    {
+        this.file = file;
+        this.compression = compression;
+        this.level = level;
+    }
+
+    /**
+     * Writes a transformed copy of the archive to the specified target file. Directory entries are dropped. The
+     * rewrite runs as a pipeline: the calling thread reads the raw entries ahead, the given workers inflate, transform
+     * and deflate the candidates, and the calling thread writes the results behind in the original entry order.
+     *
+     * @param target The file to write, must not be {@code null} and must differ from the source archive.
+     * @param transformer The transformer for the entry contents, must not be {@code null}.
+     * @param projectData The project data to record the class metadata into, must not be {@code null}.
+     * @param workers The executor to transform entries with, may be {@code null} to transform them on the calling
+     *            thread. When an executor is used, each entry is transformed into its own project data which is merged
+     *            in entry order, so the result is the same either way.
+     * @return The number of entries that were rewritten rather than copied as is.
+     * @throws IOException If the archive could not be read or written.
+     */
+    public int rewrite( File target, EntryTransformer transformer, ProjectData projectData, ExecutorService workers )
+        throws IOException
+    {
+        return rewrite( target, transformer, projectData, workers, null );
+    }
+
+    /**
+     * Writes a transformed copy of the archive to the specified target file, appending the given entries if any entry
+     * got rewritten. Additional entries whose name already exists in the archive are skipped.
+     *
+     * @param target The file to write, must not be {@code null} and must differ from the source archive.
+     * @param transformer The transformer for the entry contents, must not be {@code null}.
+     * @param projectData The project data to record the class metadata into, must not be {@code null}.
+     * @param workers The executor to transform entries with, may be {@code null} to transform them on the calling
+     *            thread.
+     * @param additions The contents of the entries to add keyed by their name, may be {@code null} for none.
+     * @return The number of entries that were rewritten rather than copied as is, not counting additional entries.
+     * @throws IOException If the archive could not be read or written.
+     * @see #rewrite(File, EntryTransformer, ProjectData, ExecutorService)
+     */
+    public int rewrite( File target, EntryTransformer transformer, ProjectData projectData, ExecutorService workers,
+                        Map<String, byte[]> additions )
+        throws IOException
+    {
+        return rewrite( target, transformer, projectData, workers, additions, false );
+    }
+
+    /**
+     * Writes a copy of the archive to the specified target file with the given entries appended. All other entries
+     * are copied as is, additional entries whose name already exists in the archive are skipped.
+     *
+     * @param target The file to write, must not be {@code null} and must differ from the source archive.
+     * @param additions The contents of the entries to add keyed by their name, must not be {@code null}.
+     * @throws IOException If the archive could not be read or written.
+     */
+    public void append( File target, Map<String, byte[]> additions )
+        throws IOException
+    {
+        EntryTransformer none = new EntryTransformer()
+        {
+            public boolean isCandidate( String name )
+            {
+                return false;
+            }
+
+            public byte[] transform( String name, byte[] content, ProjectData classData )
+            {
+                return content;
+            }
+        };
+        rewrite( target, none, new ProjectData(), null, additions, true );
+    }
+
+    private int rewrite( File target, EntryTransformer transformer, ProjectData projectData, ExecutorService workers,
+                         Map<String, byte[]> additions, boolean always )
+        throws IOException
+    {
+        Set<String> names = new HashSet<String>();
+        RandomAccessFile input = new RandomAccessFile( file, "r" );
+        Writer writer = null;
+        LinkedList<PendingEntry> pending = new LinkedList<PendingEntry>();
+        try
+        {
+            FileChannel channel = input.getChannel();
+
+            byte[] end = readEndHeader( channel );
+            List<byte[]> entries = readCentralDirectory( channel, end );
+
+            writer = new Writer( channel, new FileOutputStream( target ), projectData, workers != null );
+
+            int window = ( workers != null ) ? WINDOW : 0;
+
+            for ( byte[] entry : entries )
+            {
+                int nameLength = getShort( entry, 28 );
+                String name = getName( entry, nameLength );
+                if ( name.endsWith( "/" ) )
+                {
+                    continue;
+                }
+                names.add( name );
+
+                long localOffset = getInt( entry, 42 ) & 0xFFFFFFFFL;
+                byte[] local = read( channel, localOffset, LOCAL_HEADER_SIZE );
+                if ( getInt( local, 0 ) != LOCAL_HEADER )
+                {
+                    throw new IOException( "Invalid local header for entry " + name + " in " + file );
+                }
+                long extraOffset = localOffset + LOCAL_HEADER_SIZE + nameLength;
+                byte[] localExtra = read( channel, extraOffset, getShort( local, 28 ) );
+
+                PendingEntry next = new PendingEntry( entry, nameLength, localExtra, extraOffset + localExtra.length );
+
+                int flags = getShort( entry, 8 );
+                int method = getShort( entry, 10 );
+                boolean readable = ( flags & FLAG_ENCRYPTED ) == 0 && ( method == STORED || method == DEFLATED );
+                boolean candidate = readable && transformer.isCandidate( name );
+                if ( candidate || ( readable && compression == Compression.STORE && method == DEFLATED ) )
+                {
+                    byte[] data = read( channel, next.dataOffset, (int) next.compressedSize );
+                    ProjectData entryData = ( workers != null ) ? new ProjectData() : projectData;
+                    Callable<Transformed> task =
+                        new TransformTask( name, data, method, getInt( entry, 24 ), getInt( entry, 16 ),
+                                           candidate ? transformer : null, candidate ? entryData : null );
+                    if ( workers != null )
+                    {
+                        next.result = workers.submit( task );
+                    }
+                    else
+                    {
+                        FutureTask<Transformed> inline = new FutureTask<Transformed>( task );
+                        inline.run();
+                        next.result = inline;
+                    }
+                }
+
+                pending.add( next );
+                while ( pending.size() > window )
+                {
+                    writer.write( pending.removeFirst() );
+                }
+            }
+
+            while ( !pending.isEmpty() )
+            {
+                writer.write( pending.removeFirst() );
+            }
+
+            if ( additions != null && ( always || writer.modified > 0 ) )
+            {
+                for ( Map.Entry<String, byte[]> addition : additions.entrySet() )
+                {
+                    if ( !names.contains( addition.getKey() ) )
+                    {
+                        writer.add( addition.getKey(), addition.getValue() );
+                    }
+                }
+            }
+
+            writer.finish( end );
+        }
+        finally
+        {
+            for ( PendingEntry entry : pending )
+            {
+                if ( entry.result != null )
+                {
+                    entry.result.cancel( true );
+                }
+            }
+            if ( writer != null )
+            {
+                writer.close();
+            }
+            input.close();
+        }
+
+        return writer.modified;
+    }
+
+    /**
+     * An entry read from the source archive, waiting to be written.
+     */
+    private static class PendingEntry
+    {
+
+        final byte[] header;
+
+        final int nameLength;
+
+        final byte[] localExtra;
+
+        final long dataOffset;
+
+        final long compressedSize;
+
+        Future<Transformed> result;
+
+        PendingEntry( byte[] header, int nameLength, byte[] localExtra, long dataOffset )
+        {
+            this.header = header;
+            this.nameLength = nameLength;
+            this.localExtra = localExtra;
+            this.dataOffset = dataOffset;
+            this.compressedSize = getInt( header, 20 ) & 0xFFFFFFFFL;
+        }
+
+    }
+
+    /**
+     * The outcome of transforming an entry.
+     */
+    private static class Transformed
+    {
+
+        final ProjectData projectData;
+
+        byte[] data;
+
+        int method;
+
+        int crc;
+
+        int size;
+
+        Transformed( ProjectData projectData )
+        {
+            this.projectData = projectData;
+        }
+
+    }
+
+    /**
+     * Inflates, transforms and compresses a single entry.
+     */
+    private class TransformTask
+        implements Callable<Transformed>
+    {
+
+        private final String name;
+
+        private final byte[] data;
+
+        private final int method;
+
+        private final int size;
+
+        private final int crc;
+
+        private final EntryTransformer transformer;
+
+        private final ProjectData projectData;
+
+        /**
+         * @param transformer The transformer or {@code null} if the entry only needs to be stored uncompressed.
+         */
+        TransformTask( String name, byte[] data, int method, int size, int crc, EntryTransformer transformer,
+                       ProjectData projectData )
+        {
+            this.name = name;
+            this.data = data;
+            this.method = method;
+            this.size = size;
+            this.crc = crc;
+            this.transformer = transformer;
+            this.projectData = projectData;
+        }
+
+        public Transformed call()
+            throws IOException
+        {
+            Transformed result = new Transformed( projectData );
+
+            byte[] original = uncompress( name, data, method, size );
+            byte[] content = ( transformer != null ) ? transformer.transform( name, original, projectData ) : null;
+            if ( content != null )
+            {
+                CRC32 checksum = new CRC32();
+                checksum.update( content );
+
+                boolean store =
+                    compression == Compression.STORE || ( compression == Compression.KEEP && method == STORED );
+                result.method = store ? STORED : DEFLATED;
+                result.data = store ? content : deflate( content );
+                result.crc = (int) checksum.getValue();
+                result.size = content.length;
+            }
+            else if ( compression == Compression.STORE && method == DEFLATED )
+            {
+                // the contents did not change, so neither did the CRC
+                result.method = STORED;
+                result.data = original;
+                result.crc = crc;
+                result.size = original.length;
+            }
+
+            return result;
+        }
+
+    }
+
+    /**
+     * Writes the entries of the target archive in order.
+     */
+    private class Writer
+    {
+
+        private final FileChannel input;
+
+        private final FileOutputStream fos;
+
+        private final CountingOutputStream output;
+
+        private final ProjectData projectData;
+
+        private final boolean merge;
+
+        private final ByteArrayOutputStream directory = new ByteArrayOutputStream( 64 * 1024 );
+
+        private int count;
+
+        int modified;
+
+        Writer( FileChannel input, FileOutputStream fos, ProjectData projectData, boolean merge )
+        {
+            this.input = input;
+            this.fos = fos;
+            this.output = new CountingOutputStream( fos );
+            this.projectData = projectData;
+            this.merge = merge;
+        }
+
+        void write( PendingEntry entry )
+            throws IOException
+        {
+            Transformed transformed = ( entry.result != null ) ? get( entry.result ) : null;
+            if ( transformed != null && transformed.projectData != null && merge )
+            {
+                projectData.merge( transformed.projectData );
+            }
+
+            byte[] header = entry.header.clone();
+            putShort( header, 8, getShort( header, 8 ) & ~FLAG_DATA_DESCRIPTOR );
+            putInt( header, 42, (int) output.getCount() );
+
+            if ( transformed == null || transformed.data == null )
+            {
+                writeLocalHeader( output, header, entry.nameLength, entry.localExtra );
+                output.flush();
+                transfer( input, entry.dataOffset, entry.compressedSize, fos.getChannel() );
+                output.skip( entry.compressedSize );
+            }
+            else
+            {
+                putShort( header, 6, Math.max( ( transformed.method == DEFLATED ) ? 20 : 10, getShort( header, 6 ) ) );
+                putShort( header, 10, transformed.method );
+                putInt( header, 16, transformed.crc );
+                putInt( header, 20, transformed.data.length );
+                putInt( header, 24, transformed.size );
+
+                writeLocalHeader( output, header, entry.nameLength, entry.localExtra );
+                output.write( transformed.data );
+                modified++;
+            }
+
+            directory.write( header );
+            count++;
+        }
+
+        void add( String name, byte[] content )
+            throws IOException
+        {
+            byte[] nameBytes = name.getBytes( "UTF-8" );
+            boolean deflate = compression != Compression.STORE;
+            byte[] data = deflate ? deflate( content ) : content;
+            CRC32 crc = new CRC32();
+            crc.update( content );
+
+            byte[] header = new byte[CENTRAL_HEADER_SIZE + nameBytes.length];
+            putInt( header, 0, CENTRAL_HEADER );
+            putShort( header, 4, 20 );
+            putShort( header, 6, deflate ? 20 : 10 );
+            putShort( header, 8, FLAG_UTF8 );
+            putShort( header, 10, deflate ? DEFLATED : STORED );
+            // a fixed time stamp keeps the archive reproducible
+            putShort( header, 12, 0 );
+            putShort( header, 14, DOS_EPOCH );
+            putInt( header, 16, (int) crc.getValue() );
+            putInt( header, 20, data.length );
+            putInt( header, 24, content.length );
+            putShort( header, 28, nameBytes.length );
+            putInt( header, 42, (int) output.getCount() );
+            System.arraycopy( nameBytes, 0, header, CENTRAL_HEADER_SIZE, nameBytes.length );
+
+            writeLocalHeader( output, header, nameBytes.length, new byte[0] );
+            output.write( data );
+
+            directory.write( header );
+            count++;
+        }
+
+        void finish( byte[] end )
+            throws IOException
+        {
+            long directoryOffset = output.getCount();
+            directory.writeTo( output );
+
+            byte[] trailer = end.clone();
+            putShort( trailer, 8, count );
+            putShort( trailer, 10, count );
+            putInt( trailer, 12, directory.size() );
+            putInt( trailer, 16, (int) directoryOffset );
+            output.write( trailer );
+
+            output.close();
+        }
+
+        void close()
+        {
+            IOUtil.close( output );
+        }
+
+        private Transformed get( Future<Transformed> result )
+            throws IOException
+        {
+            try
+            {
+                return result.get();
+            }
+            catch ( InterruptedException e )
+            {
+                throw (IOException) new InterruptedIOException( "Interrupted while rewriting " + file ).initCause( e );
+            }
+            catch ( ExecutionException e )
+            {
+                Throwable cause = e.getCause();
+                if ( cause instanceof IOException )
+                {
+                    throw (IOException) cause;
+                }
+                if ( cause instanceof RuntimeException )
+                {
+                    throw (RuntimeException) cause;
+                }
+                if ( cause instanceof Error )
+                {
+                    throw (Error) cause;
+                }
+                throw (IOException) new IOException( cause.getMessage() ).initCause( cause );
+            }
+        }
+
+    }
+
+    private static void writeLocalHeader( OutputStream output, byte[] central, int nameLength, byte[] localExtra )
+        throws IOException
+    {
+        byte[] local = new byte[LOCAL_HEADER_SIZE];
+        putInt( local, 0, LOCAL_HEADER );
+        // version needed, flags, method, time, date, crc, sizes and name length line up with the central header
+        System.arraycopy( central, 6, local, 4, 24 );
+        putShort( local, 28, localExtra.length );
+        output.write( local );
+        output.write( central, CENTRAL_HEADER_SIZE, nameLength );
+        output.write( localExtra );
+    }
+
+    private byte[] readEndHeader( FileChannel channel )
+        throws IOException
+    {
+        long size = channel.size();
+        int length = (int) Math.min( size, END_HEADER_SIZE + 0xFFFF );
+        byte[] tail = read( channel, size - length, length );
+
+        for ( int i = length - END_HEADER_SIZE; i >= 0; i-- )
+        {
+            if ( getInt( tail, i ) == END_HEADER && i + END_HEADER_SIZE + getShort( tail, i + 20 ) == length )
+            {
+                byte[] end = new byte[length - i];
+                System.arraycopy( tail, i, end, 0, end.length );
+                if ( getShort( end, 10 ) == 0xFFFF || getInt( end, 16 ) == 0xFFFFFFFF )
+                {
+                    throw new IOException( "ZIP64 archives are not supported: " + file );
+                }
+                return end;
+            }
+        }
+
+        throw new IOException( "Not a ZIP archive: " + file );
+    }
+
+    private List<byte[]> readCentralDirectory( FileChannel channel, byte[] end )
+        throws IOException
+    {
+        int count = getShort( end, 10 );
+        byte[] directory = read( channel, getInt( end, 16 ) & 0xFFFFFFFFL, getInt( end, 12 ) );
+
+        List<byte[]> entries = new ArrayList<byte[]>( count );
+        int index = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            if ( getInt( directory, index ) != CENTRAL_HEADER )
+            {
+                throw new IOException( "Invalid central directory in " + file );
+            }
+            int length =
+                CENTRAL_HEADER_SIZE + getShort( directory, index + 28 ) + getShort( directory, index + 30 )
+                    + getShort( directory, index + 32 );
+            byte[] entry = new byte[length];
+            System.arraycopy( directory, index, entry, 0, length );
+            if ( getInt( entry, 20 ) == 0xFFFFFFFF || getInt( entry, 24 ) == 0xFFFFFFFF
+                || getInt( entry, 42 ) == 0xFFFFFFFF )
+            {
+                throw new IOException( "ZIP64 archives are not supported: " + file );
+            }
+            entries.add( entry );
+            index += length;
+        }
+        return entries;
+    }
+
+    private static String getName( byte[] entry, int nameLength )
+        throws UnsupportedEncodingException
+    {
+        String encoding = ( getShort( entry, 8 ) & FLAG_UTF8 ) != 0 ? "UTF-8" : "ISO-8859-1";
+        return new String( entry, CENTRAL_HEADER_SIZE, nameLength, encoding );
+    }
+
+    private byte[] uncompress( String name, byte[] data, int method, int size )
+        throws IOException
+    {
+        if ( method == STORED )
+        {
+            return data;
+        }
+
+        Inflater inflater = new Inflater( true );
+        try
+        {
+            // the extra byte works around the nowrap inflater requiring a dummy byte past the input
+            byte[] input = new byte[data.length + 1];
+            System.arraycopy( data, 0, input, 0, data.length );
+            inflater.setInput( input );
+
+            byte[] content = new byte[size];
+            int length = 0;
+            while ( length < size )
+            {
+                int n = inflater.inflate( content, length, size - length );
+                if ( n <= 0 && ( inflater.finished() || inflater.needsInput() ) )
+                {
+                    break;
+                }
+                length += n;
+            }
+            if ( length != size )
+            {
+                throw new IOException( "Corrupt entry " + name + " in " + file );
+            }
+            return content;
+        }
+        catch ( DataFormatException e )
+        {
+            throw (IOException) new IOException( "Corrupt entry " + name + " in " + file ).initCause( e );
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    private byte[] deflate( byte[] content )
+    {
+        Deflater deflater = new Deflater( level, true );
+        try
+        {
+            deflater.setInput( content );
+            deflater.finish();
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream( content.length / 2 + 64 );
+            byte[] chunk = new byte[8192];
+            while ( !deflater.finished() )
+            {
+                int n = deflater.deflate( chunk );
+                buffer.write( chunk, 0, n );
+            }
+            return buffer.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static void transfer( FileChannel source, long position, long count, FileChannel target )
+        throws IOException
+    {
+        for ( long done = 0; done < count; )
+        {
+            long n = source.transferTo( position + done, count - done, target );
+            if ( n <= 0 )
+            {
+                throw new IOException( "Unexpected end of archive" );
+            }
+            done += n;
+        }
+    }
+
+    private static byte[] read( FileChannel channel, long position, int length )
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( length );
+        while ( buffer.hasRemaining() )
+        {
+            if ( channel.read( buffer, position + buffer.position() ) < 0 )
+            {
+                throw new IOException( "Unexpected end of archive" );
+            }
+        }
+        return buffer.array();
+    }
+
+    private static int getShort( byte[] b, int index )
+    {
+        return ( b[index] & 0xFF ) | ( ( b[index + 1] & 0xFF ) << 8 );
+    }
+
+    private static int getInt( byte[] b, int index )
+    {
+        return ( b[index] & 0xFF ) | ( ( b[index + 1] & 0xFF ) << 8 ) | ( ( b[index + 2] & 0xFF ) << 16 )
+            | ( ( b[index + 3] & 0xFF ) << 24 );
+    }
+
+    private static void putShort( byte[] b, int index, int value )
+    {
+        b[index] = (byte) value;
+        b[index + 1] = (byte) ( value >>> 8 );
+    }
+
+    private static void putInt( byte[] b, int index, int value )
+    {
+        b[index] = (byte) value;
+        b[index + 1] = (byte) ( value >>> 8 );
+        b[index + 2] = (byte) ( value >>> 16 );
+        b[index + 3] = (byte) ( value >>> 24 );
+    }
+
+    /**
+     * A buffered stream that keeps track of the archive offset, including data written directly to the underlying
+     * channel.
+     */
+    private static class CountingOutputStream
+        extends BufferedOutputStream
+    {
+
+        private long count;
+
+        CountingOutputStream( OutputStream out )
+        {
+            super( out, 64 * 1024 );
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public void skip( long n )
+        {
+            count += n;
+        }
+
+        @Override
+        public synchronized void write( int b )
+            throws IOException
+        {
+            super.write( b );
+            count++;
+        }
+
+        @Override
+        public synchronized void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            super.write( b, off, len );
+            count += len;
+        }
+
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Writes the coverage summary as compact JSON to <code>coverage.json</code>, meant for dashboards and scripts. The
+ * project object holds its packages, each package object holds its classes:
+ *
+ * <pre>
+ * {"lineRate":0.75,"branchRate":0.5,"lines":[3,4],"branches":[1,2],"complexity":1.5,"packages":[
+ *   {"name":"org.example",...,"classes":[{"name":"org.example.Foo",...}]}]}
+ * </pre>
+ *
+ * The <code>lines</code> and <code>branches</code> arrays hold the covered and the valid count.
+ */
+final class JsonReport
+{
+
+    private JsonReport()
+    {
+        // hide
+    }
+
+    /**
+     * Writes the JSON report.
+     *
+     * @param summary The coverage summary of the project, must not be {@code null}.
+     * @param reportDirectory The directory to write the report to, must not be {@code null}.
+     * @throws IOException If the report could not be written.
+     */
+    public static void write( CoverageSummary.Node summary, File reportDirectory )
+        throws IOException
+    {
+        reportDirectory.mkdirs();
+
+        BufferedWriter writer =
+            new BufferedWriter( new OutputStreamWriter( new FileOutputStream( new File( reportDirectory,
+                                                                                        "coverage.json" ) ),
+                                                        "UTF-8" ) );
+        try
+        {
+            StringBuilder buffer = new StringBuilder( 256 );
+            buffer.append( '{' );
+            appendCounts( buffer, summary );
+            buffer.append( ",\"packages\":[" );
+            writer.write( buffer.toString() );
+
+            int i = 0;
+            for ( CoverageSummary.Node packageNode : summary.getChildren() )
+            {
+                buffer.setLength( 0 );
+                buffer.append( ( i++ > 0 ) ? ",\n{" : "\n{" );
+                appendName( buffer, packageNode );
+                appendCounts( buffer, packageNode );
+                buffer.append( ",\"classes\":[" );
+                int j = 0;
+                for ( CoverageSummary.Node classNode : packageNode.getChildren() )
+                {
+                    buffer.append( ( j++ > 0 ) ? ",{" : "{" );
+                    appendName( buffer, classNode );
+                    appendCounts( buffer, classNode );
+                    buffer.append( '}' );
+                }
+                buffer.append( "]}" );
+                writer.write( buffer.toString() );
+            }
+
+            writer.write( "]}" );
+            writer.newLine();
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+    }
+
+    private static void appendName( StringBuilder buffer, CoverageSummary.Node node )
+    {
+        buffer.append( "\"name\":\"" );
+        String name = node.getName();
+        for ( int i = 0; i < name.length(); i++ )
+        {
+            char c = name.charAt( i );
+            if ( c == '"' || c == '\\' )
+            {
+                buffer.append( '\\' ).append( c );
+            }
+            else if ( c < 0x20 )
+            {
+                buffer.append( String.format( "\\u%04x", Integer.valueOf( c ) ) );
+            }
+            else
+            {
+                buffer.append( c );
+            }
+        }
+        buffer.append( "\"," );
+    }
+
+    private static void appendCounts( StringBuilder buffer, CoverageSummary.Node node )
+    {
+        buffer.append( "\"lineRate\":" ).append( round( node.getLineRate() ) );
+        buffer.append( ",\"branchRate\":" ).append( round( node.getBranchRate() ) );
+        buffer.append( ",\"lines\":[" ).append( node.getCoveredLines() ).append( ',' ).append( node.getValidLines() );
+        buffer.append( "],\"branches\":[" ).append( node.getCoveredBranches() ).append( ',' );
+        buffer.append( node.getValidBranches() );
+        buffer.append( "],\"complexity\":" ).append( round( node.getComplexity() ) );
+    }
+
+    private static double round( double value )
+    {
+        // JSON has no notion of NaN or infinity
+        if ( Double.isNaN( value ) || Double.isInfinite( value ) )
+        {
+            return 0;
+        }
+        return Math.round( value * 10000 ) / 10000.0;
+    }
+
+}
@@ -1,10 +1,12 @@
 package org.sonatype.maven.plugin.cobertura4it;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
-import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
 import net.sourceforge.cobertura.coveragedata.ProjectData;
 
 import org.apache.maven.plugin.AbstractMojo;
@@ -12,6 +14,7 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.DirectoryScanner;
+import org.sonatype.maven.plugin.cobertura4it.runtime.CounterFile;
 
 /**
  * @goal merge
@@ -34,52 +37,191 @@ public class MetadataMergeMojo
      */
     private File searchPath;
 
+    /**
+     * The number of threads used to load and merge the coverage data files. A value of <code>0</code> selects the number
+     * of available processors, a value of <code>1</code> merges the files one after another.
+     * 
+     * @parameter expression="${cobertura.mergeThreads}" default-value="0"
+     */
+    private int mergeThreads;
+
+    /**
+     * The format of the merged coverage data, either <code>ser</code> for the Java serialization used by Cobertura
+     * itself or <code>binary</code> for a compact format that is smaller and faster to load. The files being merged may
+     * be in either format.
+     * 
+     * @parameter expression="${cobertura.dataFormat}" default-value="ser"
+     */
+    private String dataFormat;
+
+    /**
+     * The directory holding the per-JVM coverage shards written in the shard mode of the <code>instrument</code> goal
+     * and the counter files written in its probe modes. All <code>*.ser</code> and <code>*.counters</code> files in it
+     * are merged along with the data files found in the <code>searchPath</code>, on top of the
+     * <code>instrumentationData</code>.
+     * 
+     * @parameter expression="${cobertura.shardDirectory}" default-value="${project.build.directory}/cobertura/shards"
+     */
+    private File shardDirectory;
+
+    /**
+     * The pristine coverage metadata written by the instrumentation goals, which unlike <code>cobertura.ser</code> is
+     * never overwritten by a merge. When shards or counter files are merged, this metadata is the base of the merge, so
+     * classes that no JVM loaded are reported with zero hits and merging again yields the same result. The counter
+     * files written by the JVMs in the probe modes only hold the counters of each class keyed by its id, which are
+     * joined onto the metadata of the class from this file. Counters without matching metadata, e.g. from an older
+     * instrumentation run, are skipped with a warning.
+     * 
+     * @parameter expression="${cobertura.instrumentationData}"
+     *            default-value="${project.build.directory}/cobertura/instrumentation.ser"
+     */
+    private File instrumentationData;
+
     public void execute()
         throws MojoExecutionException, MojoFailureException
     {
-        if ( !searchPath.isDirectory() )
+        if ( !searchPath.isDirectory() && ( shardDirectory == null || !shardDirectory.isDirectory() ) )
         {
             throw new MojoExecutionException( "SearchPath " + searchPath + " not found." );
         }
 
-        merge( "cobertura.ser" );
+        merge( "cobertura.ser", CoverageDataFile.getFormat( dataFormat ) );
     }
 
-    private void merge( String metadataFile )
+    private void merge( String metadataFile, CoverageDataFile.Format format )
+        throws MojoExecutionException
     {
         getLog().info( "Merging " + metadataFile );
-        List<File> paths = getMetadataPaths( metadataFile );
+        List<File> paths = getMetadataPaths( searchPath, "**/" + metadataFile );
+        List<File> shards = new ArrayList<File>();
+        if ( shardDirectory != null )
+        {
+            shards.addAll( getMetadataPaths( shardDirectory, "*.ser" ) );
+            shards.addAll( getMetadataPaths( shardDirectory, "*" + CounterFile.SUFFIX ) );
+            getLog().info( "Found " + shards.size() + " coverage shard(s) in " + shardDirectory );
+            paths.addAll( shards );
+        }
         if ( paths.isEmpty() )
         {
             getLog().error( "coverage.ec metadata not found." );
             return;
         }
 
+        List<File> counterFiles = new ArrayList<File>();
+        for ( Iterator<File> it = paths.iterator(); it.hasNext(); )
+        {
+            File path = it.next();
+            if ( path.getName().endsWith( CounterFile.SUFFIX ) )
+            {
+                counterFiles.add( path );
+                it.remove();
+            }
+        }
+
         File output = new File( project.getBuild().getDirectory(), "/cobertura/" + metadataFile );
-        ProjectData projectData = new ProjectData();
+        // the output of a previous merge already holds the hits of the files merged now
+        paths.remove( output.getAbsoluteFile() );
+
+        ProjectData base = null;
+        if ( !shards.isEmpty() )
+        {
+            base = loadInstrumentationData( output );
+        }
+
+        ProjectDataMerger merger = new ProjectDataMerger( mergeThreads, getLog() );
+        ProjectData counters = null;
+        if ( !counterFiles.isEmpty() )
+        {
+            // the ids are resolved against the instrumentation metadata alone, before anything is merged onto it
+            CounterMetadata metadata = new CounterMetadata();
+            if ( base != null )
+            {
+                metadata.addClasses( base );
+            }
+            counters = merger.merge( counterFiles, metadata );
+            if ( metadata.getUnresolved() > 0 )
+            {
+                getLog().warn( "Skipped " + metadata.getUnresolved() + " class record(s) of the counter files that "
+                    + "match no coverage metadata" );
+            }
+        }
 
-        for ( File file : paths )
+        ProjectData projectData = merger.merge( paths );
+        if ( base != null )
+        {
+            base.merge( projectData );
+            projectData = base;
+        }
+        if ( counters != null )
         {
-            projectData.merge( CoverageDataFileHandler.loadCoverageData( file ) );
+            projectData.merge( counters );
         }
 
         output.getParentFile().mkdirs();
 
-        CoverageDataFileHandler.saveCoverageData( projectData, output );
+        long start = System.currentTimeMillis();
+        try
+        {
+            CoverageDataFile.save( projectData, output, format );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Failed to save merged coverage data " + output, e );
+        }
+        getLog().info( "Saved " + output + " in " + ( System.currentTimeMillis() - start ) + " ms" );
+    }
+
+    /**
+     * Loads the instrumentation metadata as the base of the merge. A shard only holds the lines its JVM hit, so without
+     * the metadata the classes never loaded and the lines never executed would be missing from the merged data.
+     *
+     * @return The metadata or {@code null} if it is missing.
+     */
+    private ProjectData loadInstrumentationData( File output )
+        throws MojoExecutionException
+    {
+        if ( instrumentationData == null || !instrumentationData.isFile() )
+        {
+            getLog().warn( "Coverage metadata " + instrumentationData + " not found, the merged data will only hold "
+                + "the classes and lines hit by the tests" );
+            return null;
+        }
+        if ( instrumentationData.getAbsoluteFile().equals( output.getAbsoluteFile() ) )
+        {
+            throw new MojoExecutionException( "The instrumentationData " + instrumentationData
+                + " must not be the output of the merge, whose hits would be counted again" );
+        }
+        try
+        {
+            return CoverageDataFile.load( instrumentationData );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Failed to load coverage metadata " + instrumentationData, e );
+        }
     }
 
-    private List<File> getMetadataPaths( String metadataFile )
+    private List<File> getMetadataPaths( File basedir, String pattern )
     {
+        List<File> paths = new ArrayList<File>();
+        if ( !basedir.isDirectory() )
+        {
+            return paths;
+        }
+
         DirectoryScanner scan = new DirectoryScanner();
-        scan.setBasedir( searchPath );
-        scan.setIncludes( new String[] { "**/" + metadataFile } );
+        scan.setBasedir( basedir );
+        scan.setIncludes( new String[] { pattern } );
         scan.addDefaultExcludes();
         scan.scan();
 
-        List<File> paths = new ArrayList<File>();
-        for ( String path : scan.getIncludedFiles() )
+        // fixed order so the merged data does not depend on the file system
+        String[] files = scan.getIncludedFiles();
+        Arrays.sort( files );
+
+        for ( String path : files )
         {
-            paths.add( new File( searchPath, path ) );
+            paths.add( new File( basedir, path ) );
         }
 
         return paths;
@@ -0,0 +1,74 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.File;
+
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Selects classes by Ant-like patterns matched against their package name in the form <code>org/example</code>, e.g.
+ * <code>org/example/**</code>. Dots may be used instead of slashes. Classes in the default package have the empty
+ * package name.
+ */
+class PackageFilter
+{
+
+    private final String[] patterns;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param patterns The patterns of the packages to accept, may be {@code null} or empty to accept all classes.
+     */
+    public PackageFilter( String[] patterns )
+    {
+        if ( patterns == null || patterns.length <= 0 )
+        {
+            this.patterns = null;
+        }
+        else
+        {
+            this.patterns = new String[patterns.length];
+            for ( int i = 0; i < patterns.length; i++ )
+            {
+                String pattern = patterns[i].trim().replace( '.', '/' ).replace( '\\', '/' );
+                this.patterns[i] = pattern.replace( '/', File.separatorChar );
+            }
+        }
+    }
+
+    /**
+     * Tells whether this filter accepts all classes.
+     *
+     * @return {@code true} if no patterns were given, {@code false} otherwise.
+     */
+    public boolean acceptsAll()
+    {
+        return patterns == null;
+    }
+
+    /**
+     * Tells whether the given class is accepted.
+     *
+     * @param className The fully qualified class name, e.g. <code>org.example.Foo</code>, must not be {@code null}.
+     * @return {@code true} if the class is accepted, {@code false} otherwise.
+     */
+    public boolean accept( String className )
+    {
+        if ( patterns == null )
+        {
+            return true;
+        }
+
+        int dot = className.lastIndexOf( '.' );
+        String packageName = ( dot < 0 ) ? "" : className.substring( 0, dot ).replace( '.', File.separatorChar );
+        for ( String pattern : patterns )
+        {
+            if ( SelectorUtils.matchPath( pattern, packageName ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,304 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.PackageData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.coveragedata.SourceFileData;
+import net.sourceforge.cobertura.reporting.ComplexityCalculator;
+import net.sourceforge.cobertura.reporting.html.HTMLReport;
+import net.sourceforge.cobertura.util.FileFinder;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Renders the HTML report of Cobertura on several threads. Most of the time goes into the annotated source pages, each
+ * of which only depends on its own source file. So the source files are split into one partition per thread, balanced
+ * by their number of lines, and each partition is rendered by an {@link HTMLReport} of its own into a scratch
+ * directory. Meanwhile, the complete report is rendered into the report directory without access to the sources, which
+ * yields the overview, package and index pages from the complete data. Once all threads are done, the source pages of
+ * the partitions replace the placeholders of the complete report. All threads share one complexity calculator, which
+ * must be safe for concurrent use, so the report is identical to a serial one. Source pages that are still up-to-date
+ * from a previous run can be spared, then the complete report goes to a scratch directory as well and only its other
+ * pages are moved over.
+ */
+class ParallelHtmlReport
+{
+
+    private final int threads;
+
+    private final Log log;
+
+    /**
+     * Creates a new report renderer.
+     *
+     * @param threads The number of threads to use, values less than <code>1</code> select the number of available
+     *            processors.
+     * @param log The log to report progress and timing to, must not be {@code null}.
+     */
+    public ParallelHtmlReport( int threads, Log log )
+    {
+        this.threads = ( threads > 0 ) ? threads : Runtime.getRuntime().availableProcessors();
+        this.log = log;
+    }
+
+    /**
+     * Renders the HTML report.
+     *
+     * @param projectData The coverage data to report, must not be {@code null}. The data is only read.
+     * @param reportDirectory The directory to write the report to, must not be {@code null}.
+     * @param finder The finder locating the sources, must not be {@code null}. The finder is only read.
+     * @param complexity The complexity calculator, must not be {@code null}. It is used by several threads at once.
+     * @param encoding The encoding of the sources, must not be {@code null}.
+     * @throws Exception If the report could not be rendered.
+     */
+    public void generate( ProjectData projectData, File reportDirectory, FileFinder finder,
+                          ComplexityCalculator complexity, String encoding )
+        throws Exception
+    {
+        generate( projectData, reportDirectory, finder, complexity, encoding, Collections.<String> emptySet() );
+    }
+
+    /**
+     * Renders the HTML report, sparing the given source pages of a previous run. The overview, package and index pages
+     * are always rendered from the complete data.
+     *
+     * @param projectData The coverage data to report, must not be {@code null}. The data is only read.
+     * @param reportDirectory The directory to write the report to, must not be {@code null}.
+     * @param finder The finder locating the sources, must not be {@code null}. The finder is only read.
+     * @param complexity The complexity calculator, must not be {@code null}. It is used by several threads at once.
+     * @param encoding The encoding of the sources, must not be {@code null}.
+     * @param keptPages The names of the source pages in the report directory that are still up-to-date, relative to
+     *            the report directory, must not be {@code null}.
+     * @throws Exception If the report could not be rendered.
+     */
+    public void generate( ProjectData projectData, File reportDirectory, FileFinder finder,
+                          ComplexityCalculator complexity, String encoding, Set<String> keptPages )
+        throws Exception
+    {
+        long start = System.currentTimeMillis();
+
+        List<SourceFileData> sourceFiles = getSourceFiles( projectData );
+        List<List<SourceFileData>> partitions = partition( sourceFiles, keptPages );
+        if ( keptPages.isEmpty() && partitions.size() <= 1 )
+        {
+            new HTMLReport( projectData, reportDirectory, finder, complexity, encoding );
+            log.info( "Generated HTML report in " + ( System.currentTimeMillis() - start ) + " ms" );
+            return;
+        }
+
+        File parent = reportDirectory.getAbsoluteFile().getParentFile();
+        List<File> scratchDirectories = new ArrayList<File>( partitions.size() + 1 );
+        for ( int i = 0; i < partitions.size(); i++ )
+        {
+            scratchDirectories.add( new File( parent, reportDirectory.getName() + ".partition-" + i ) );
+        }
+        // the placeholders of the complete report must not overwrite the kept pages
+        File overviewDirectory = reportDirectory;
+        if ( !keptPages.isEmpty() )
+        {
+            overviewDirectory = new File( parent, reportDirectory.getName() + ".overview" );
+            scratchDirectories.add( overviewDirectory );
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( partitions.size() + 1 );
+        try
+        {
+            List<Future<?>> results = new ArrayList<Future<?>>( partitions.size() + 1 );
+            for ( int i = 0; i < partitions.size(); i++ )
+            {
+                results.add( executor.submit( render( toProjectData( partitions.get( i ) ), scratchDirectories.get( i ),
+                                                      finder, complexity, encoding ) ) );
+            }
+            // no sources, so its source pages are mere placeholders that get replaced below
+            results.add( executor.submit( render( projectData, overviewDirectory, new FileFinder(), complexity,
+                                                  encoding ) ) );
+
+            for ( Future<?> result : results )
+            {
+                result.get();
+            }
+
+            if ( overviewDirectory != reportDirectory )
+            {
+                Set<String> sourcePages = new HashSet<String>();
+                for ( SourceFileData sourceFile : sourceFiles )
+                {
+                    sourcePages.add( ReportManifest.getPage( sourceFile ) );
+                }
+                moveTree( overviewDirectory, reportDirectory, "", sourcePages );
+            }
+
+            for ( int i = 0; i < partitions.size(); i++ )
+            {
+                for ( SourceFileData sourceFile : partitions.get( i ) )
+                {
+                    String name = ReportManifest.getPage( sourceFile );
+                    move( new File( scratchDirectories.get( i ), name ), new File( reportDirectory, name ) );
+                }
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            throw ( cause instanceof Exception ) ? (Exception) cause : e;
+        }
+        finally
+        {
+            executor.shutdownNow();
+            for ( File scratchDirectory : scratchDirectories )
+            {
+                try
+                {
+                    FileUtils.deleteDirectory( scratchDirectory );
+                }
+                catch ( IOException e )
+                {
+                    log.debug( "Failed to delete " + scratchDirectory + ": " + e.getMessage() );
+                }
+            }
+        }
+
+        log.info( "Generated HTML report using " + Math.max( 1, partitions.size() ) + " thread(s) in "
+            + ( System.currentTimeMillis() - start ) + " ms, kept " + keptPages.size() + " of " + sourceFiles.size()
+            + " source pages" );
+    }
+
+    /**
+     * Gets the source files of the given project data in the order Cobertura renders them.
+     *
+     * @param projectData The coverage data, must not be {@code null}.
+     * @return The source files, never {@code null}.
+     */
+    static List<SourceFileData> getSourceFiles( ProjectData projectData )
+    {
+        List<SourceFileData> sourceFiles = new ArrayList<SourceFileData>();
+        for ( Iterator<?> it = projectData.getPackages().iterator(); it.hasNext(); )
+        {
+            for ( Iterator<?> files = ( (PackageData) it.next() ).getSourceFiles().iterator(); files.hasNext(); )
+            {
+                sourceFiles.add( (SourceFileData) files.next() );
+            }
+        }
+        return sourceFiles;
+    }
+
+    private List<List<SourceFileData>> partition( List<SourceFileData> sourceFiles, Set<String> keptPages )
+    {
+        List<SourceFileData> pending = new ArrayList<SourceFileData>( sourceFiles.size() );
+        for ( SourceFileData sourceFile : sourceFiles )
+        {
+            if ( !keptPages.contains( ReportManifest.getPage( sourceFile ) ) )
+            {
+                pending.add( sourceFile );
+            }
+        }
+
+        int count = Math.min( threads, pending.size() );
+        List<List<SourceFileData>> partitions = new ArrayList<List<SourceFileData>>( count );
+        long[] loads = new long[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            partitions.add( new ArrayList<SourceFileData>() );
+        }
+
+        // the pages are rendered in the order of the source files, each going to the least loaded partition
+        for ( SourceFileData sourceFile : pending )
+        {
+            int lightest = 0;
+            for ( int i = 1; i < count; i++ )
+            {
+                if ( loads[i] < loads[lightest] )
+                {
+                    lightest = i;
+                }
+            }
+            partitions.get( lightest ).add( sourceFile );
+            loads[lightest] += 1 + sourceFile.getNumberOfValidLines();
+        }
+        return partitions;
+    }
+
+    private static ProjectData toProjectData( List<SourceFileData> sourceFiles )
+    {
+        ProjectData projectData = new ProjectData();
+        for ( SourceFileData sourceFile : sourceFiles )
+        {
+            for ( Iterator<?> it = sourceFile.getClasses().iterator(); it.hasNext(); )
+            {
+                projectData.addClassData( (ClassData) it.next() );
+            }
+        }
+        return projectData;
+    }
+
+    private static Callable<Object> render( final ProjectData projectData, final File directory,
+                                            final FileFinder finder, final ComplexityCalculator complexity,
+                                            final String encoding )
+    {
+        return new Callable<Object>()
+        {
+            public Object call()
+                throws Exception
+            {
+                directory.mkdirs();
+                new HTMLReport( projectData, directory, finder, complexity, encoding );
+                return null;
+            }
+        };
+    }
+
+    private static void moveTree( File source, File target, String prefix, Set<String> skipped )
+        throws IOException
+    {
+        File[] files = source.listFiles();
+        if ( files == null )
+        {
+            return;
+        }
+        for ( File file : files )
+        {
+            String name = prefix + file.getName();
+            if ( file.isDirectory() )
+            {
+                File directory = new File( target, file.getName() );
+                directory.mkdirs();
+                moveTree( file, directory, name + '/', skipped );
+            }
+            else if ( !skipped.contains( name ) )
+            {
+                move( file, new File( target, file.getName() ) );
+            }
+        }
+    }
+
+    private static void move( File source, File target )
+        throws IOException
+    {
+        if ( !source.isFile() )
+        {
+            // no page for this source file in the serial report either
+            return;
+        }
+        target.delete();
+        if ( !source.renameTo( target ) )
+        {
+            FileTransfer.copy( source, target );
+        }
+    }
+
+}
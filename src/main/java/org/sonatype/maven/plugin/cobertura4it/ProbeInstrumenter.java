@@ -0,0 +1,668 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.JumpData;
+import net.sourceforge.cobertura.coveragedata.LineData;
+import net.sourceforge.cobertura.coveragedata.SwitchData;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.sonatype.maven.plugin.cobertura4it.runtime.ClassProbes;
+import org.sonatype.maven.plugin.cobertura4it.runtime.ProbeLayout;
+import org.sonatype.maven.plugin.cobertura4it.runtime.ProbeRuntime;
+
+/**
+ * Rewrites the probes of classes instrumented by Cobertura to count their hits in the slots of a {@link ClassProbes}
+ * instead of calling the <code>TouchCollector</code>, which looks up the class data in a synchronized map on every hit.
+ * The slot layout is derived from the class metadata recorded by the Cobertura pass, so probes with constant arguments
+ * are resolved to their slot at instrumentation time. The counters are registered with the {@link ProbeRuntime} from
+ * the static initializer of the class and kept in a synthetic static field. In the boolean mode, constant probes set a
+ * flag in a second synthetic field inline instead of calling {@link ClassProbes#hit(int)}. With block placement, line
+ * probes that always execute together with the first line probe of their basic block are dropped and their lines share
+ * its slot, see {@link BlockAnalyzer}. Instances are immutable and can be shared among threads.
+ */
+class ProbeInstrumenter
+{
+
+    private static final String TOUCH_COLLECTOR = "net/sourceforge/cobertura/coveragedata/TouchCollector";
+
+    private static final String CLASS_PROBES = ClassProbes.class.getName().replace( '.', '/' );
+
+    private static final String CLASS_PROBES_DESC = "L" + CLASS_PROBES + ";";
+
+    private static final String PROBE_RUNTIME = ProbeRuntime.class.getName().replace( '.', '/' );
+
+    static final String FIELD = "$cobertura4it$probes";
+
+    private static final String HITS_FIELD = "$cobertura4it$hits";
+
+    private static final String INIT = "$cobertura4it$init";
+
+    // keeps the modified UTF-8 of each chunk below the 64 KB limit of the constant pool
+    private static final int LAYOUT_CHUNK = 16 * 1024;
+
+    private final String mode;
+
+    private final int runtimeMode;
+
+    private final boolean blocks;
+
+    private ProbeInstrumenter( String mode, int runtimeMode, boolean blocks )
+    {
+        this.mode = mode;
+        this.runtimeMode = runtimeMode;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Gets the probe instrumenter for the given mode.
+     *
+     * @param mode The probe mode as given in the plugin configuration, may be {@code null}.
+     * @param placement The probe placement as given in the plugin configuration, either <code>line</code> or
+     *            <code>block</code>, may be {@code null}.
+     * @return The probe instrumenter or {@code null} to keep the probes of Cobertura.
+     * @throws MojoExecutionException If the mode or placement is unknown or the placement requires a probe mode.
+     */
+    public static ProbeInstrumenter forMode( String mode, String placement )
+        throws MojoExecutionException
+    {
+        boolean blocks;
+        if ( placement == null || "line".equalsIgnoreCase( placement.trim() ) )
+        {
+            blocks = false;
+        }
+        else if ( "block".equalsIgnoreCase( placement.trim() ) )
+        {
+            blocks = true;
+        }
+        else
+        {
+            throw new MojoExecutionException( "Invalid probePlacement " + placement
+                + ", expected one of: line, block" );
+        }
+
+        if ( mode == null || "cobertura".equalsIgnoreCase( mode.trim() ) )
+        {
+            if ( blocks )
+            {
+                throw new MojoExecutionException( "The block probePlacement requires one of the probes mapped, "
+                    + "atomic or boolean" );
+            }
+            return null;
+        }
+        else if ( "mapped".equalsIgnoreCase( mode.trim() ) )
+        {
+            return new ProbeInstrumenter( "mapped", ProbeRuntime.MAPPED, blocks );
+        }
+        else if ( "atomic".equalsIgnoreCase( mode.trim() ) )
+        {
+            return new ProbeInstrumenter( "atomic", ProbeRuntime.ATOMIC, blocks );
+        }
+        else if ( "boolean".equalsIgnoreCase( mode.trim() ) )
+        {
+            return new ProbeInstrumenter( "boolean", ProbeRuntime.BOOLEAN, blocks );
+        }
+        throw new MojoExecutionException( "Invalid probes " + mode
+            + ", expected one of: cobertura, mapped, atomic, boolean" );
+    }
+
+    /**
+     * Gets the name of the probe mode and placement, e.g. for digests.
+     *
+     * @return The name of the probe mode and placement, never {@code null}.
+     */
+    public String getMode()
+    {
+        return blocks ? mode + "/block" : mode;
+    }
+
+    /**
+     * Rewrites the probes of an instrumented class.
+     *
+     * @param classContent The bytecode as instrumented by Cobertura, must not be {@code null}.
+     * @param classData The metadata recorded when instrumenting the class, must not be {@code null}.
+     * @return The rewritten bytecode, never {@code null}.
+     */
+    public byte[] rewrite( byte[] classContent, ClassData classData )
+    {
+        String layout;
+        try
+        {
+            Map<Integer, Integer> aliases;
+            if ( blocks )
+            {
+                aliases = BlockAnalyzer.analyze( classContent, classData.getName() );
+            }
+            else
+            {
+                aliases = Collections.emptyMap();
+            }
+            layout = getLayout( classData, aliases );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // line numbers that do not fit the layout, keep counting this class with the Cobertura runtime
+            return classContent;
+        }
+
+        ClassReader cr = new ClassReader( classContent );
+        ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_MAXS );
+        cr.accept( new ProbeClassAdapter( cw, classData.getName(), layout ), 0 );
+        return cw.toByteArray();
+    }
+
+    private boolean isBoolean()
+    {
+        return runtimeMode == ProbeRuntime.BOOLEAN;
+    }
+
+    static String getLayout( ClassData classData, Map<Integer, Integer> aliases )
+    {
+        Map<Integer, LineData> lines = new TreeMap<Integer, LineData>();
+        for ( Iterator<?> it = classData.getLines().iterator(); it.hasNext(); )
+        {
+            LineData line = (LineData) it.next();
+            lines.put( Integer.valueOf( line.getLineNumber() ), line );
+        }
+
+        Map<Integer, Integer> indices = new HashMap<Integer, Integer>();
+        for ( Integer line : lines.keySet() )
+        {
+            indices.put( line, Integer.valueOf( indices.size() ) );
+        }
+
+        ProbeLayout.Builder builder = new ProbeLayout.Builder();
+        for ( LineData line : lines.values() )
+        {
+            Integer alias = aliases.get( Integer.valueOf( line.getLineNumber() ) );
+            Integer aliasIndex = ( alias != null ) ? indices.get( alias ) : null;
+            builder.addLine( line.getLineNumber(), ( aliasIndex != null ) ? aliasIndex.intValue() : -1 );
+
+            List<SwitchData> switches = new ArrayList<SwitchData>();
+            for ( int i = 0; i < line.getConditionSize(); i++ )
+            {
+                Object condition = line.getConditionData( i );
+                if ( condition instanceof JumpData )
+                {
+                    builder.addJump( ( (JumpData) condition ).getConditionNumber() );
+                }
+                else if ( condition instanceof SwitchData )
+                {
+                    switches.add( (SwitchData) condition );
+                }
+            }
+            for ( SwitchData sw : switches )
+            {
+                // the default branch is counted separately
+                builder.addSwitch( sw.getSwitchNumber(), sw.getNumberOfValidBranches() - 1 );
+            }
+        }
+        return builder.toString();
+    }
+
+    static void push( MethodVisitor mv, int value )
+    {
+        if ( value >= -1 && value <= 5 )
+        {
+            mv.visitInsn( Opcodes.ICONST_0 + value );
+        }
+        else if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE )
+        {
+            mv.visitIntInsn( Opcodes.BIPUSH, value );
+        }
+        else if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE )
+        {
+            mv.visitIntInsn( Opcodes.SIPUSH, value );
+        }
+        else
+        {
+            mv.visitLdcInsn( Integer.valueOf( value ) );
+        }
+    }
+
+    /**
+     * Adds the counter field and its initialization and hands the methods to {@link ProbeMethodAdapter}.
+     */
+    private class ProbeClassAdapter
+        extends ClassAdapter
+    {
+
+        private final String className;
+
+        private final String layout;
+
+        private final ProbeLayout probeLayout;
+
+        private String owner;
+
+        private boolean hasStaticInitializer;
+
+        ProbeClassAdapter( ClassVisitor cv, String className, String layout )
+        {
+            super( cv );
+            this.className = className;
+            this.layout = layout;
+            probeLayout = ProbeLayout.parse( layout );
+        }
+
+        @Override
+        public void visit( int version, int access, String name, String signature, String superName,
+                           String[] interfaces )
+        {
+            owner = name;
+            super.visit( version, access, name, signature, superName, interfaces );
+        }
+
+        @Override
+        public MethodVisitor visitMethod( int access, String name, String desc, String signature,
+                                          String[] exceptions )
+        {
+            MethodVisitor mv = super.visitMethod( access, name, desc, signature, exceptions );
+            if ( mv == null )
+            {
+                return mv;
+            }
+
+            if ( "<clinit>".equals( name ) )
+            {
+                hasStaticInitializer = true;
+                mv = new MethodAdapter( mv )
+                {
+                    @Override
+                    public void visitCode()
+                    {
+                        super.visitCode();
+                        mv.visitMethodInsn( Opcodes.INVOKESTATIC, owner, INIT, "()V" );
+                    }
+                };
+            }
+
+            return new ProbeMethodAdapter( mv, owner, className, probeLayout );
+        }
+
+        @Override
+        public void visitEnd()
+        {
+            FieldVisitor fv =
+                cv.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, FIELD,
+                               CLASS_PROBES_DESC, null, null );
+            if ( fv != null )
+            {
+                fv.visitEnd();
+            }
+            if ( isBoolean() )
+            {
+                fv =
+                    cv.visitField( Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, HITS_FIELD, "[Z",
+                                   null, null );
+                if ( fv != null )
+                {
+                    fv.visitEnd();
+                }
+            }
+
+            MethodVisitor mv =
+                cv.visitMethod( Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, INIT, "()V", null,
+                                null );
+            mv.visitCode();
+            mv.visitLdcInsn( className );
+            for ( int i = 0; i < layout.length() || i == 0; i += LAYOUT_CHUNK )
+            {
+                mv.visitLdcInsn( layout.substring( i, Math.min( layout.length(), i + LAYOUT_CHUNK ) ) );
+                if ( i > 0 )
+                {
+                    mv.visitMethodInsn( Opcodes.INVOKEVIRTUAL, "java/lang/String", "concat",
+                                        "(Ljava/lang/String;)Ljava/lang/String;" );
+                }
+            }
+            push( mv, runtimeMode );
+            mv.visitMethodInsn( Opcodes.INVOKESTATIC, PROBE_RUNTIME, "register",
+                                "(Ljava/lang/String;Ljava/lang/String;I)" + CLASS_PROBES_DESC );
+            if ( isBoolean() )
+            {
+                mv.visitInsn( Opcodes.DUP );
+                mv.visitFieldInsn( Opcodes.PUTSTATIC, owner, FIELD, CLASS_PROBES_DESC );
+                mv.visitMethodInsn( Opcodes.INVOKESTATIC, PROBE_RUNTIME, "getHits", "(" + CLASS_PROBES_DESC + ")[Z" );
+                mv.visitFieldInsn( Opcodes.PUTSTATIC, owner, HITS_FIELD, "[Z" );
+            }
+            else
+            {
+                mv.visitFieldInsn( Opcodes.PUTSTATIC, owner, FIELD, CLASS_PROBES_DESC );
+            }
+            mv.visitInsn( Opcodes.RETURN );
+            mv.visitMaxs( 0, 0 );
+            mv.visitEnd();
+
+            if ( !hasStaticInitializer )
+            {
+                mv = cv.visitMethod( Opcodes.ACC_STATIC, "<clinit>", "()V", null, null );
+                mv.visitCode();
+                mv.visitMethodInsn( Opcodes.INVOKESTATIC, owner, INIT, "()V" );
+                mv.visitInsn( Opcodes.RETURN );
+                mv.visitMaxs( 0, 0 );
+                mv.visitEnd();
+            }
+
+            super.visitEnd();
+        }
+
+    }
+
+    /**
+     * Replaces the probes of Cobertura. A probe is the class name constant, up to three int arguments pushed as
+     * constants or loaded from locals and the static call to the <code>TouchCollector</code>. Once the class name has
+     * been seen, the instructions are held back until the probe is complete, anything else flushes them unchanged.
+     */
+    private class ProbeMethodAdapter
+        extends MethodAdapter
+    {
+
+        private final String owner;
+
+        private final String className;
+
+        private final ProbeLayout layout;
+
+        private Object pendingName;
+
+        private final int[] argOpcodes = new int[3];
+
+        private final int[] argOperands = new int[3];
+
+        private int args = -1;
+
+        ProbeMethodAdapter( MethodVisitor mv, String owner, String className, ProbeLayout layout )
+        {
+            super( mv );
+            this.owner = owner;
+            this.className = className;
+            this.layout = layout;
+        }
+
+        @Override
+        public void visitLdcInsn( Object cst )
+        {
+            flush();
+            if ( className.equals( cst ) || owner.equals( cst ) )
+            {
+                pendingName = cst;
+                args = 0;
+                return;
+            }
+            super.visitLdcInsn( cst );
+        }
+
+        @Override
+        public void visitInsn( int opcode )
+        {
+            if ( opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5 && hold( opcode, 0 ) )
+            {
+                return;
+            }
+            flush();
+            super.visitInsn( opcode );
+        }
+
+        @Override
+        public void visitIntInsn( int opcode, int operand )
+        {
+            if ( ( opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH ) && hold( opcode, operand ) )
+            {
+                return;
+            }
+            flush();
+            super.visitIntInsn( opcode, operand );
+        }
+
+        @Override
+        public void visitVarInsn( int opcode, int var )
+        {
+            if ( opcode == Opcodes.ILOAD && hold( opcode, var ) )
+            {
+                return;
+            }
+            flush();
+            super.visitVarInsn( opcode, var );
+        }
+
+        @Override
+        public void visitMethodInsn( int opcode, String owner, String name, String desc )
+        {
+            if ( args >= 0 && opcode == Opcodes.INVOKESTATIC && TOUCH_COLLECTOR.equals( owner )
+                && replace( name, desc ) )
+            {
+                args = -1;
+                pendingName = null;
+                return;
+            }
+            flush();
+            super.visitMethodInsn( opcode, owner, name, desc );
+        }
+
+        @Override
+        public void visitTypeInsn( int opcode, String type )
+        {
+            flush();
+            super.visitTypeInsn( opcode, type );
+        }
+
+        @Override
+        public void visitFieldInsn( int opcode, String owner, String name, String desc )
+        {
+            flush();
+            super.visitFieldInsn( opcode, owner, name, desc );
+        }
+
+        @Override
+        public void visitJumpInsn( int opcode, Label label )
+        {
+            flush();
+            super.visitJumpInsn( opcode, label );
+        }
+
+        @Override
+        public void visitLabel( Label label )
+        {
+            flush();
+            super.visitLabel( label );
+        }
+
+        @Override
+        public void visitIincInsn( int var, int increment )
+        {
+            flush();
+            super.visitIincInsn( var, increment );
+        }
+
+        @Override
+        public void visitTableSwitchInsn( int min, int max, Label dflt, Label[] labels )
+        {
+            flush();
+            super.visitTableSwitchInsn( min, max, dflt, labels );
+        }
+
+        @Override
+        public void visitLookupSwitchInsn( Label dflt, int[] keys, Label[] labels )
+        {
+            flush();
+            super.visitLookupSwitchInsn( dflt, keys, labels );
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn( String desc, int dims )
+        {
+            flush();
+            super.visitMultiANewArrayInsn( desc, dims );
+        }
+
+        @Override
+        public void visitFrame( int type, int nLocal, Object[] local, int nStack, Object[] stack )
+        {
+            flush();
+            super.visitFrame( type, nLocal, local, nStack, stack );
+        }
+
+        @Override
+        public void visitLineNumber( int line, Label start )
+        {
+            flush();
+            super.visitLineNumber( line, start );
+        }
+
+        @Override
+        public void visitMaxs( int maxStack, int maxLocals )
+        {
+            flush();
+            super.visitMaxs( maxStack, maxLocals );
+        }
+
+        private boolean hold( int opcode, int operand )
+        {
+            if ( args < 0 || args >= argOpcodes.length )
+            {
+                return false;
+            }
+            argOpcodes[args] = opcode;
+            argOperands[args] = operand;
+            args++;
+            return true;
+        }
+
+        private void flush()
+        {
+            if ( args < 0 )
+            {
+                return;
+            }
+            mv.visitLdcInsn( pendingName );
+            replayArgs();
+            args = -1;
+            pendingName = null;
+        }
+
+        private void replayArgs()
+        {
+            for ( int i = 0; i < args; i++ )
+            {
+                if ( argOpcodes[i] == Opcodes.ILOAD )
+                {
+                    mv.visitVarInsn( Opcodes.ILOAD, argOperands[i] );
+                }
+                else if ( argOpcodes[i] == Opcodes.BIPUSH || argOpcodes[i] == Opcodes.SIPUSH )
+                {
+                    mv.visitIntInsn( argOpcodes[i], argOperands[i] );
+                }
+                else
+                {
+                    mv.visitInsn( argOpcodes[i] );
+                }
+            }
+        }
+
+        private boolean isConstant( int arg )
+        {
+            return argOpcodes[arg] != Opcodes.ILOAD;
+        }
+
+        private int constant( int arg )
+        {
+            int opcode = argOpcodes[arg];
+            if ( opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH )
+            {
+                return argOperands[arg];
+            }
+            return opcode - Opcodes.ICONST_0;
+        }
+
+        private boolean replace( String name, String desc )
+        {
+            if ( "touch".equals( name ) && "(Ljava/lang/String;I)V".equals( desc ) && args == 1 )
+            {
+                if ( isConstant( 0 ) )
+                {
+                    if ( !layout.isAlias( constant( 0 ) ) )
+                    {
+                        hit( layout.lineSlot( constant( 0 ) ) );
+                    }
+                }
+                else
+                {
+                    dispatch( name, "(I)V" );
+                }
+                return true;
+            }
+            else if ( "touchJump".equals( name ) && "(Ljava/lang/String;IIZ)V".equals( desc ) && args == 3 )
+            {
+                if ( isConstant( 0 ) && isConstant( 1 ) && isConstant( 2 ) )
+                {
+                    hit( layout.jumpSlot( constant( 0 ), constant( 1 ), constant( 2 ) != 0 ) );
+                }
+                else
+                {
+                    dispatch( name, "(IIZ)V" );
+                }
+                return true;
+            }
+            else if ( "touchSwitch".equals( name ) && "(Ljava/lang/String;III)V".equals( desc ) && args == 3 )
+            {
+                if ( isConstant( 0 ) && isConstant( 1 ) && isConstant( 2 ) )
+                {
+                    hit( layout.switchSlot( constant( 0 ), constant( 1 ), constant( 2 ) ) );
+                }
+                else
+                {
+                    dispatch( name, "(III)V" );
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void hit( int slot )
+        {
+            if ( slot < 0 )
+            {
+                // not part of the metadata, so the merge would drop the hit anyway
+                return;
+            }
+            if ( isBoolean() )
+            {
+                mv.visitFieldInsn( Opcodes.GETSTATIC, owner, HITS_FIELD, "[Z" );
+                push( mv, slot );
+                mv.visitInsn( Opcodes.ICONST_1 );
+                mv.visitInsn( Opcodes.BASTORE );
+            }
+            else
+            {
+                mv.visitFieldInsn( Opcodes.GETSTATIC, owner, FIELD, CLASS_PROBES_DESC );
+                push( mv, slot );
+                mv.visitMethodInsn( Opcodes.INVOKEVIRTUAL, CLASS_PROBES, "hit", "(I)V" );
+            }
+        }
+
+        private void dispatch( String name, String desc )
+        {
+            mv.visitFieldInsn( Opcodes.GETSTATIC, owner, FIELD, CLASS_PROBES_DESC );
+            replayArgs();
+            mv.visitMethodInsn( Opcodes.INVOKEVIRTUAL, CLASS_PROBES, name, desc );
+        }
+
+    }
+
+}
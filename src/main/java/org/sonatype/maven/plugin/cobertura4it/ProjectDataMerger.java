@@ -0,0 +1,178 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Merges coverage data files as a parallel tree reduction. The files are split into one contiguous range per thread,
+ * each thread loads and folds its range in order, and the partial results are then combined pairwise, again in order.
+ * Hence at most two data files per thread are held in memory and the result matches merging the files one after
+ * another.
+ */
+class ProjectDataMerger
+{
+
+    private final int threads;
+
+    private final Log log;
+
+    /**
+     * Creates a new merger.
+     *
+     * @param threads The number of threads to use, values less than <code>1</code> select the number of available
+     *            processors.
+     * @param log The log to report progress and timing to, must not be {@code null}.
+     */
+    public ProjectDataMerger( int threads, Log log )
+    {
+        this.threads = ( threads > 0 ) ? threads : Runtime.getRuntime().availableProcessors();
+        this.log = log;
+    }
+
+    /**
+     * Loads and merges the given coverage data files.
+     *
+     * @param files The files to merge, must not be {@code null}.
+     * @return The merged coverage data, never {@code null}.
+     * @throws MojoExecutionException If the merge failed.
+     */
+    public ProjectData merge( List<File> files )
+        throws MojoExecutionException
+    {
+        return merge( files, null );
+    }
+
+    /**
+     * Loads and merges the given coverage data files, joining the class id records of counter files with the given
+     * instrumentation metadata.
+     *
+     * @param files The files to merge, must not be {@code null}.
+     * @param metadata The instrumentation metadata, may be {@code null} if none is available.
+     * @return The merged coverage data, never {@code null}.
+     * @throws MojoExecutionException If the merge failed.
+     */
+    public ProjectData merge( List<File> files, final CounterMetadata metadata )
+        throws MojoExecutionException
+    {
+        long start = System.currentTimeMillis();
+
+        int ranges = Math.max( 1, Math.min( threads, files.size() ) );
+        ExecutorService executor = ( ranges > 1 ) ? Executors.newFixedThreadPool( ranges ) : null;
+        try
+        {
+            List<Future<ProjectData>> partials = new ArrayList<Future<ProjectData>>( ranges );
+            for ( int i = 0; i < ranges; i++ )
+            {
+                final List<File> range = files.subList( i * files.size() / ranges, ( i + 1 ) * files.size() / ranges );
+                partials.add( submit( executor, new Callable<ProjectData>()
+                {
+                    public ProjectData call()
+                    {
+                        return fold( range, metadata );
+                    }
+                } ) );
+            }
+
+            while ( partials.size() > 1 )
+            {
+                List<Future<ProjectData>> combined = new ArrayList<Future<ProjectData>>( ( partials.size() + 1 ) / 2 );
+                for ( int i = 0; i < partials.size(); i += 2 )
+                {
+                    if ( i + 1 >= partials.size() )
+                    {
+                        combined.add( partials.get( i ) );
+                        continue;
+                    }
+                    final Future<ProjectData> left = partials.get( i );
+                    final Future<ProjectData> right = partials.get( i + 1 );
+                    combined.add( submit( executor, new Callable<ProjectData>()
+                    {
+                        public ProjectData call()
+                            throws Exception
+                        {
+                            ProjectData projectData = left.get();
+                            projectData.merge( right.get() );
+                            return projectData;
+                        }
+                    } ) );
+                }
+                partials = combined;
+            }
+
+            ProjectData projectData = partials.get( 0 ).get();
+
+            log.info( "Merged " + files.size() + " coverage data file(s) using " + ranges + " thread(s) in "
+                + ( System.currentTimeMillis() - start ) + " ms" );
+
+            return projectData;
+        }
+        catch ( InterruptedException e )
+        {
+            throw new MojoExecutionException( "Interrupted while merging coverage data", e );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            while ( cause instanceof ExecutionException )
+            {
+                cause = cause.getCause();
+            }
+            throw new MojoExecutionException( "Failed to merge coverage data: " + cause.getMessage(), cause );
+        }
+        finally
+        {
+            if ( executor != null )
+            {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private ProjectData fold( List<File> range, CounterMetadata metadata )
+    {
+        ProjectData projectData = new ProjectData();
+        for ( File file : range )
+        {
+            long start = System.currentTimeMillis();
+            try
+            {
+                CoverageDataFile.mergeInto( projectData, file, metadata );
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Skipping unreadable coverage data " + file + ": " + e.getMessage() );
+                continue;
+            }
+            if ( log.isDebugEnabled() )
+            {
+                log.debug( "  " + file + " (" + ( System.currentTimeMillis() - start ) + " ms)" );
+            }
+        }
+        return projectData;
+    }
+
+    private static <T> Future<T> submit( ExecutorService executor, Callable<T> task )
+    {
+        if ( executor != null )
+        {
+            return executor.submit( task );
+        }
+        FutureTask<T> inline = new FutureTask<T>( task );
+        inline.run();
+        return inline;
+    }
+
+}
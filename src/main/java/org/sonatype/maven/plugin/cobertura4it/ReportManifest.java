@@ -0,0 +1,197 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.SourceFileData;
+import net.sourceforge.cobertura.util.FileFinder;
+import net.sourceforge.cobertura.util.Source;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Records, for every source page of the HTML report, a digest of everything the page is rendered from: the coverage
+ * data of the classes in the source file, the bytes of the source file and the encoding. A later run only needs to
+ * render the pages whose digest changed.
+ */
+class ReportManifest
+{
+
+    private static final String HEADER = "# cobertura4it report manifest";
+
+    private final Map<String, String> digests = new TreeMap<String, String>();
+
+    /**
+     * Loads a manifest previously written by {@link #save(File)}.
+     *
+     * @param file The manifest file, must not be {@code null}.
+     * @return The loaded manifest or an empty one if the file does not exist, never {@code null}.
+     * @throws IOException If the file could not be read.
+     */
+    public static ReportManifest load( File file )
+        throws IOException
+    {
+        ReportManifest manifest = new ReportManifest();
+
+        if ( !file.isFile() )
+        {
+            return manifest;
+        }
+
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try
+        {
+            for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+            {
+                if ( line.startsWith( "#" ) || line.length() <= 0 )
+                {
+                    continue;
+                }
+
+                String[] tokens = line.split( " ", 2 );
+                if ( tokens.length != 2 )
+                {
+                    throw new IOException( "Malformed report manifest " + file + ": " + line );
+                }
+                manifest.put( tokens[1], tokens[0] );
+            }
+        }
+        finally
+        {
+            IOUtil.close( reader );
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Saves this manifest, sorted by page to keep the file stable between runs.
+     *
+     * @param file The manifest file, must not be {@code null}.
+     * @throws IOException If the file could not be written.
+     */
+    public void save( File file )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+
+        BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) );
+        try
+        {
+            writer.write( HEADER );
+            writer.newLine();
+            for ( Map.Entry<String, String> entry : digests.entrySet() )
+            {
+                writer.write( entry.getValue() );
+                writer.write( ' ' );
+                writer.write( entry.getKey() );
+                writer.newLine();
+            }
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+    }
+
+    public String get( String page )
+    {
+        return digests.get( page );
+    }
+
+    public void put( String page, String digest )
+    {
+        digests.put( page, digest );
+    }
+
+    public Set<String> getPages()
+    {
+        return digests.keySet();
+    }
+
+    /**
+     * Gets the name of the source page of a source file, relative to the report directory.
+     *
+     * @param sourceFile The source file, must not be {@code null}.
+     * @return The name of the page, never {@code null}.
+     */
+    public static String getPage( SourceFileData sourceFile )
+    {
+        return sourceFile.getNormalizedName() + ".html";
+    }
+
+    /**
+     * Calculates the digest of the inputs of a source page.
+     *
+     * @param sourceFile The source file, must not be {@code null}.
+     * @param finder The finder locating the sources, must not be {@code null}.
+     * @param encoding The encoding of the sources, must not be {@code null}.
+     * @return The hex encoded digest, never {@code null}.
+     * @throws IOException If the source file could not be read.
+     */
+    public static String digest( SourceFileData sourceFile, FileFinder finder, String encoding )
+        throws IOException
+    {
+        MessageDigest digest = InstrumentationManifest.newDigest();
+        digest.update( encoding.getBytes( "UTF-8" ) );
+        digest.update( (byte) 0 );
+
+        Source source = finder.getSource( sourceFile.getName() );
+        if ( source != null )
+        {
+            try
+            {
+                InputStream input = source.getInputStream();
+                byte[] buffer = new byte[16 * 1024];
+                for ( int n = input.read( buffer ); n >= 0; n = input.read( buffer ) )
+                {
+                    digest.update( buffer, 0, n );
+                }
+            }
+            finally
+            {
+                source.close();
+            }
+        }
+        digest.update( (byte) ( source != null ? 1 : 0 ) );
+
+        // the binary format covers all coverage data of a class, in a stable order
+        CoverageDataWriter writer = new CoverageDataWriter( new DigestOutputStream( new OutputStream()
+        {
+            @Override
+            public void write( int b )
+            {
+                // only digested
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len )
+            {
+                // only digested
+            }
+        }, digest ) );
+        for ( Iterator<?> it = sourceFile.getClasses().iterator(); it.hasNext(); )
+        {
+            writer.writeClass( (ClassData) it.next() );
+        }
+        writer.close();
+
+        return InstrumentationManifest.toHex( digest.digest() );
+    }
+
+}
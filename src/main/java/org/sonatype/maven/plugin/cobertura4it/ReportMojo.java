@@ -5,18 +5,27 @@ package org.sonatype.maven.plugin.cobertura4it;
  */
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import net.sourceforge.cobertura.coveragedata.CoverageDataFileHandler;
 import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.coveragedata.SourceFileData;
 import net.sourceforge.cobertura.reporting.ComplexityCalculator;
-import net.sourceforge.cobertura.reporting.html.HTMLReport;
 import net.sourceforge.cobertura.reporting.xml.SummaryXMLReport;
 import net.sourceforge.cobertura.reporting.xml.XMLReport;
 import net.sourceforge.cobertura.util.FileFinder;
-import net.sourceforge.cobertura.util.Source;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -36,7 +45,7 @@ public class ReportMojo
     extends AbstractMojo
 {
 
-
+    private static final List<String> FORMATS = Arrays.asList( "txt", "xml", "summaryXml", "html", "json" );
 
     /**
      * The location of the generated report files.
@@ -47,7 +56,8 @@ public class ReportMojo
 
     /**
      * The (case-sensitive) names of the reports to be generated. Supported reports are <code>txt</code>,
-     * <code>xml</code> and <code>html</code>. Defaults to <code>txt</code>, <code>xml</code> and <code>html</code>.
+     * <code>xml</code>, <code>summaryXml</code>, <code>html</code> and <code>json</code>. Defaults to <code>txt</code>,
+     * <code>xml</code> and <code>html</code>. All reports are generated concurrently from the same coverage data.
      * 
      * @parameter
      */
@@ -75,6 +85,33 @@ public class ReportMojo
      */
     private String coverageReportEncoding;
 
+    /**
+     * The Ant-like patterns of the packages to report on, matched against the package name in the form
+     * <code>org/example</code>, e.g. <code>org/example/**</code>. Defaults to all packages. With coverage data in the
+     * binary format, only the classes of the selected packages are read.
+     * 
+     * @parameter
+     */
+    private String[] packages;
+
+    /**
+     * The number of threads used to render the pages of the HTML report and to parse the sources for their complexity.
+     * A value of <code>0</code> selects the number of available processors, a value of <code>1</code> does all work on
+     * a single thread.
+     * 
+     * @parameter expression="${cobertura.reportThreads}" default-value="0"
+     */
+    private int reportThreads;
+
+    /**
+     * Whether the HTML report should only re-render the source pages whose coverage data or source file changed since
+     * the previous run. The digests of the rendered pages are kept in <code>cobertura/report.manifest</code> within
+     * the build directory.
+     * 
+     * @parameter expression="${cobertura.incrementalReport}" default-value="true"
+     */
+    private boolean incrementalReport;
+
     /**
      * Executes this mojo.
      * 
@@ -84,60 +121,181 @@ public class ReportMojo
         throws MojoExecutionException
     {
         File coverage = new File( project.getBuild().getDirectory(), "/cobertura/cobertura.ser" );
-        ProjectData coverageProjectData = CoverageDataFileHandler.loadCoverageData( coverage );
+        ProjectData coverageProjectData;
+        try
+        {
+            coverageProjectData = CoverageDataFile.load( coverage, new PackageFilter( packages ) );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Failed to read coverage data " + coverage, e );
+        }
 
-        FileFinder finder = new FileFinder()
+        Set<String> format = new LinkedHashSet<String>( Arrays.asList( getFormats() ) );
+        for ( String name : format )
         {
-            @Override
-            public Source getSource( String fileName )
+            if ( !FORMATS.contains( name ) )
             {
-                Source source = super.getSource( fileName );
-                if ( source == null )
-                {
-                    source = super.getSource( fileName.replace( ".java", ".as" ) );
-                }
-                if ( source == null )
-                {
-                    source = super.getSource( fileName.replace( ".java", ".mxml" ) );
-                }
-                return source;
+                throw new MojoExecutionException( "Unsupported report format " + name + ", supported formats are "
+                    + FORMATS );
             }
-        };
+        }
+        if ( StringUtils.isEmpty( coverageReportEncoding ) )
+        {
+            coverageReportEncoding = "UTF-8";
+        }
 
         List<File> sourcePath = collectSourcePath();
 
-        for ( File dir : sourcePath )
+        // one scan instead of probing every source directory for every class and extension
+        IndexedFileFinder finder = new IndexedFileFinder( sourcePath, ".as", ".mxml" );
+        getLog().debug( "Indexed " + finder.size() + " source paths" );
+
+        // the complexity only depends on the sources, so it is kept across builds
+        File complexityFile = new File( project.getBuild().getDirectory(), "cobertura/complexity.cache" );
+        CachingComplexityCalculator complexity = new CachingComplexityCalculator( finder, getLog() );
+        try
         {
-            finder.addSourceDirectory( dir.getAbsolutePath() );
+            complexity.load( complexityFile );
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Ignoring unreadable complexity cache " + complexityFile + ": " + e.getMessage() );
         }
 
-        ComplexityCalculator complexity = new ComplexityCalculator( finder );
         try
         {
             reportDirectory.mkdirs();
 
-            List<String> format = Arrays.asList( getFormats() );
-            if ( format.contains( "html" ) )
+            complexity.prepare( coverageProjectData, reportThreads );
+            complexity.save( complexityFile );
+
+            // the summary is gathered once for all reports based on it
+            CoverageSummary.Node summary = null;
+            if ( format.contains( "txt" ) || format.contains( "json" ) )
             {
-                if ( StringUtils.isEmpty( coverageReportEncoding ) )
+                summary = CoverageSummary.of( coverageProjectData, complexity );
+            }
+
+            Map<String, Callable<Object>> reports = new LinkedHashMap<String, Callable<Object>>();
+            for ( String name : format )
+            {
+                reports.put( name, newReport( name, coverageProjectData, finder, complexity, summary ) );
+            }
+            generateReports( reports );
+        }
+        catch ( Exception e )
+        {
+            throw new MojoExecutionException( "Unable to write coverage report", e );
+        }
+    }
+
+    private Callable<Object> newReport( final String name, final ProjectData projectData, final FileFinder finder,
+                                        final ComplexityCalculator complexity, final CoverageSummary.Node summary )
+    {
+        return new Callable<Object>()
+        {
+            public Object call()
+                throws Exception
+            {
+                if ( "html".equals( name ) )
+                {
+                    generateHtml( projectData, finder, complexity );
+                }
+                else if ( "xml".equals( name ) )
                 {
-                    coverageReportEncoding = "UTF-8";
+                    new XMLReport( projectData, reportDirectory, finder, complexity );
                 }
-                new HTMLReport( coverageProjectData, reportDirectory, finder, complexity, coverageReportEncoding );
+                else if ( "summaryXml".equals( name ) )
+                {
+                    new SummaryXMLReport( projectData, reportDirectory, finder, complexity );
+                }
+                else if ( "txt".equals( name ) )
+                {
+                    TextReport.write( summary, reportDirectory );
+                }
+                else if ( "json".equals( name ) )
+                {
+                    JsonReport.write( summary, reportDirectory );
+                }
+                return null;
             }
-            else if ( format.contains( "xml" ) )
+        };
+    }
+
+    private void generateReports( Map<String, Callable<Object>> reports )
+        throws Exception
+    {
+        long start = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, reports.size() ) );
+        try
+        {
+            Map<String, Future<?>> results = new LinkedHashMap<String, Future<?>>();
+            for ( Map.Entry<String, Callable<Object>> report : reports.entrySet() )
             {
-                new XMLReport( coverageProjectData, reportDirectory, finder, complexity );
+                results.put( report.getKey(), executor.submit( report.getValue() ) );
             }
-            else if ( format.contains( "summaryXml" ) )
+            for ( Map.Entry<String, Future<?>> result : results.entrySet() )
             {
-                new SummaryXMLReport( coverageProjectData, reportDirectory, finder, complexity );
+                try
+                {
+                    result.getValue().get();
+                }
+                catch ( ExecutionException e )
+                {
+                    Throwable cause = e.getCause();
+                    getLog().error( "Failed to generate " + result.getKey() + " report: " + cause );
+                    throw ( cause instanceof Exception ) ? (Exception) cause : e;
+                }
             }
         }
-        catch ( Exception e )
+        finally
         {
-            throw new MojoExecutionException( "Unable to write coverage report", e );
+            executor.shutdownNow();
+        }
+
+        getLog().info( "Generated " + reports.keySet() + " coverage reports in "
+            + ( System.currentTimeMillis() - start ) + " ms" );
+    }
+
+    private void generateHtml( ProjectData projectData, FileFinder finder, ComplexityCalculator complexity )
+        throws Exception
+    {
+        ParallelHtmlReport report = new ParallelHtmlReport( reportThreads, getLog() );
+        File manifestFile = new File( project.getBuild().getDirectory(), "cobertura/report.manifest" );
+        if ( !incrementalReport )
+        {
+            manifestFile.delete();
+            report.generate( projectData, reportDirectory, finder, complexity, coverageReportEncoding );
+            return;
         }
+
+        ReportManifest previous = ReportManifest.load( manifestFile );
+        ReportManifest current = new ReportManifest();
+        Set<String> keptPages = new HashSet<String>();
+        for ( SourceFileData sourceFile : ParallelHtmlReport.getSourceFiles( projectData ) )
+        {
+            String page = ReportManifest.getPage( sourceFile );
+            String digest = ReportManifest.digest( sourceFile, finder, coverageReportEncoding );
+            current.put( page, digest );
+            if ( digest.equals( previous.get( page ) ) && new File( reportDirectory, page ).isFile() )
+            {
+                keptPages.add( page );
+            }
+        }
+        for ( String page : previous.getPages() )
+        {
+            if ( current.get( page ) == null )
+            {
+                new File( reportDirectory, page ).delete();
+            }
+        }
+
+        // an interrupted run must not leave a manifest vouching for pages it did not write
+        manifestFile.delete();
+        report.generate( projectData, reportDirectory, finder, complexity, coverageReportEncoding, keptPages );
+        current.save( manifestFile );
     }
 
     private String[] getFormats()
@@ -0,0 +1,180 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.maven.plugin.cobertura4it.runtime.CounterFile;
+import org.sonatype.maven.plugin.cobertura4it.runtime.CoverageShard;
+
+/**
+ * Provides the classes of the <code>runtime</code> package, which the instrumented classes call besides the Cobertura
+ * runtime, along with the resource configuring the shard directory. Both instrumentation goals ship these entries next
+ * to the instrumented classes.
+ */
+final class RuntimeSupport
+{
+
+    private static final String PACKAGE = CoverageShard.class.getPackage().getName().replace( '.', '/' ) + "/";
+
+    // all classes of the runtime package, including nested ones
+    private static final String[] CLASSES =
+        { "ArrayProbes", "BooleanProbes", "ClassProbes", "CounterFile", "CoverageShard", "MappedProbes",
+            "ProbeControl", "ProbeControl$Listener", "ProbeLayout", "ProbeLayout$Builder", "ProbeRuntime",
+            "ProbeRuntime$CounterWriter", "StripedProbes" };
+
+    private RuntimeSupport()
+    {
+        // hide
+    }
+
+    /**
+     * Gets the runtime entries to add next to the instrumented classes.
+     *
+     * @param shardDirectory The shard directory to configure, may be {@code null} for none.
+     * @return The contents of the entries keyed by their path using forward slashes, never {@code null}.
+     * @throws IOException If the runtime classes could not be read from the plugin class path.
+     */
+    public static Map<String, byte[]> getEntries( File shardDirectory )
+        throws IOException
+    {
+        Map<String, byte[]> entries = getClassEntries();
+        entries.putAll( getShardEntries( shardDirectory ) );
+        return entries;
+    }
+
+    /**
+     * Gets the runtime classes to add next to the instrumented classes. Unlike the shard configuration, these do not
+     * depend on the build, so they may go into cached artifacts.
+     *
+     * @return The contents of the classes keyed by their path using forward slashes, never {@code null}.
+     * @throws IOException If the runtime classes could not be read from the plugin class path.
+     */
+    public static Map<String, byte[]> getClassEntries()
+        throws IOException
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        for ( String name : CLASSES )
+        {
+            String path = PACKAGE + name + ".class";
+            InputStream input = RuntimeSupport.class.getClassLoader().getResourceAsStream( path );
+            if ( input == null )
+            {
+                throw new IOException( "Missing " + path + " in plugin class path" );
+            }
+            try
+            {
+                entries.put( path, IOUtil.toByteArray( input ) );
+            }
+            finally
+            {
+                IOUtil.close( input );
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Gets the resource configuring the shard directory of the current build.
+     *
+     * @param shardDirectory The shard directory to configure, may be {@code null} for none.
+     * @return The contents of the resource keyed by its path, empty if no directory is given, never {@code null}.
+     * @throws IOException If the resource could not be created.
+     */
+    public static Map<String, byte[]> getShardEntries( File shardDirectory )
+        throws IOException
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        if ( shardDirectory != null )
+        {
+            // written by hand, Properties.store() adds a timestamp that would make every build differ
+            String line = "directory=" + escape( shardDirectory.getAbsolutePath() ) + "\n";
+            entries.put( CoverageShard.RESOURCE, line.getBytes( "ISO-8859-1" ) );
+        }
+        return entries;
+    }
+
+    /**
+     * Escapes a property value the way {@link Properties#store(java.io.OutputStream, String)} does.
+     */
+    private static String escape( String value )
+    {
+        StringBuilder buffer = new StringBuilder( value.length() + 16 );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            switch ( c )
+            {
+                case '\\':
+                    buffer.append( "\\\\" );
+                    break;
+                case '\t':
+                    buffer.append( "\\t" );
+                    break;
+                case '\n':
+                    buffer.append( "\\n" );
+                    break;
+                case '\r':
+                    buffer.append( "\\r" );
+                    break;
+                case '\f':
+                    buffer.append( "\\f" );
+                    break;
+                case '=':
+                case ':':
+                case '#':
+                case '!':
+                    buffer.append( '\\' ).append( c );
+                    break;
+                case ' ':
+                    // only a leading space would be dropped when loading
+                    buffer.append( ( i == 0 ) ? "\\ " : " " );
+                    break;
+                default:
+                    if ( c < 0x20 || c > 0x7e )
+                    {
+                        buffer.append( String.format( "\\u%04X", Integer.valueOf( c ) ) );
+                    }
+                    else
+                    {
+                        buffer.append( c );
+                    }
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Deletes the shards, counter files and partial dumps that earlier test runs left in the shard directory, so the
+     * next merge only picks up the coverage of the tests run against the current instrumentation.
+     *
+     * @param shardDirectory The shard directory, may be {@code null} for none.
+     * @return The number of deleted files.
+     */
+    public static int clearShards( File shardDirectory )
+    {
+        File[] files = ( shardDirectory != null ) ? shardDirectory.listFiles() : null;
+        if ( files == null )
+        {
+            return 0;
+        }
+        int deleted = 0;
+        for ( File file : files )
+        {
+            String name = file.getName();
+            // only the files named by the runtime and the dump goal, the directory may be shared with other files
+            if ( name.startsWith( "cobertura-" )
+                && ( name.endsWith( ".ser" ) || name.endsWith( CounterFile.SUFFIX ) || name.endsWith( ".tmp" ) )
+                && file.isFile() && file.delete() )
+            {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+}
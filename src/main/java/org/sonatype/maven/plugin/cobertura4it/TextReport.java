@@ -0,0 +1,79 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Locale;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Writes the coverage summary as a plain text table to <code>coverage.txt</code>, one row for the project, each
+ * package and each class.
+ */
+final class TextReport
+{
+
+    private static final String ROW = "%-60s %24s %24s %10s";
+
+    private TextReport()
+    {
+        // hide
+    }
+
+    /**
+     * Writes the text report.
+     *
+     * @param summary The coverage summary of the project, must not be {@code null}.
+     * @param reportDirectory The directory to write the report to, must not be {@code null}.
+     * @throws IOException If the report could not be written.
+     */
+    public static void write( CoverageSummary.Node summary, File reportDirectory )
+        throws IOException
+    {
+        reportDirectory.mkdirs();
+
+        BufferedWriter writer =
+            new BufferedWriter( new OutputStreamWriter( new FileOutputStream( new File( reportDirectory,
+                                                                                        "coverage.txt" ) ),
+                                                        "UTF-8" ) );
+        try
+        {
+            writer.write( String.format( Locale.ENGLISH, ROW, "Name", "Lines", "Branches", "Complexity" ) );
+            writer.newLine();
+            writeRow( writer, "[all]", summary );
+            for ( CoverageSummary.Node packageNode : summary.getChildren() )
+            {
+                String name = packageNode.getName();
+                writeRow( writer, "  " + ( name.length() > 0 ? name : "[default]" ), packageNode );
+                for ( CoverageSummary.Node classNode : packageNode.getChildren() )
+                {
+                    writeRow( writer, "    " + classNode.getName(), classNode );
+                }
+            }
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+    }
+
+    private static void writeRow( BufferedWriter writer, String name, CoverageSummary.Node node )
+        throws IOException
+    {
+        writer.write( String.format( Locale.ENGLISH, ROW, name,
+                                     format( node.getLineRate(), node.getCoveredLines(), node.getValidLines() ),
+                                     format( node.getBranchRate(), node.getCoveredBranches(),
+                                             node.getValidBranches() ),
+                                     String.format( Locale.ENGLISH, "%.2f", node.getComplexity() ) ) );
+        writer.newLine();
+    }
+
+    private static String format( double rate, int covered, int valid )
+    {
+        return String.format( Locale.ENGLISH, "%5.1f%% (%d/%d)", rate * 100, covered, valid );
+    }
+
+}
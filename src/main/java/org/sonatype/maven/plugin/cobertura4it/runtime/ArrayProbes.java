@@ -0,0 +1,39 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Counters on the heap, written to a counter file when the JVM shuts down. Used when a class could not get a slot
+ * range in the memory-mapped counter file.
+ */
+final class ArrayProbes
+    extends ClassProbes
+{
+
+    private final int[] counters;
+
+    ArrayProbes( String className, String encodedLayout, ProbeLayout layout )
+    {
+        super( className, encodedLayout, layout );
+        counters = new int[layout.getSlotCount()];
+    }
+
+    @Override
+    public void hit( int slot )
+    {
+        counters[slot]++;
+    }
+
+    @Override
+    public long get( int slot )
+    {
+        return counters[slot] & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset()
+    {
+        Arrays.fill( counters, 0 );
+    }
+
+}
@@ -0,0 +1,45 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Flags on the heap that only record whether a slot was hit at all, read as a count of zero or one. The instrumented
+ * class keeps the array of flags in a static field of its own and sets the flags of constant probes inline, without a
+ * call, a lock or a read of the old value, so the JIT can hoist or drop repeated stores.
+ */
+final class BooleanProbes
+    extends ClassProbes
+{
+
+    private final boolean[] hits;
+
+    BooleanProbes( String className, String encodedLayout, ProbeLayout layout )
+    {
+        super( className, encodedLayout, layout );
+        hits = new boolean[layout.getSlotCount()];
+    }
+
+    boolean[] getHits()
+    {
+        return hits;
+    }
+
+    @Override
+    public void hit( int slot )
+    {
+        hits[slot] = true;
+    }
+
+    @Override
+    public long get( int slot )
+    {
+        return hits[slot] ? 1 : 0;
+    }
+
+    @Override
+    public void reset()
+    {
+        Arrays.fill( hits, false );
+    }
+
+}
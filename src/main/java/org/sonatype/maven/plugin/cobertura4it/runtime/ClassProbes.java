@@ -0,0 +1,127 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+/**
+ * The hit counters of an instrumented class. Each class registers with the {@link ProbeRuntime} from its static
+ * initializer and keeps the returned instance in a static field. The probes of the class then either hit a slot that
+ * was resolved at instrumentation time or pass their line, jump or switch to this instance to look up the slot.
+ */
+public abstract class ClassProbes
+{
+
+    private final String className;
+
+    private final String encodedLayout;
+
+    private final ProbeLayout layout;
+
+    /**
+     * Creates the counters of a class.
+     *
+     * @param className The fully qualified name of the class, must not be {@code null}.
+     * @param encodedLayout The encoded slot layout of the class, must not be {@code null}.
+     * @param layout The decoded slot layout of the class, must not be {@code null}.
+     */
+    protected ClassProbes( String className, String encodedLayout, ProbeLayout layout )
+    {
+        this.className = className;
+        this.encodedLayout = encodedLayout;
+        this.layout = layout;
+    }
+
+    /**
+     * Gets the name of the class.
+     *
+     * @return The fully qualified name of the class, never {@code null}.
+     */
+    public final String getClassName()
+    {
+        return className;
+    }
+
+    /**
+     * Gets the encoded slot layout of the class.
+     *
+     * @return The encoded slot layout, never {@code null}.
+     */
+    public final String getEncodedLayout()
+    {
+        return encodedLayout;
+    }
+
+    /**
+     * Gets the slot layout of the class.
+     *
+     * @return The slot layout, never {@code null}.
+     */
+    public final ProbeLayout getLayout()
+    {
+        return layout;
+    }
+
+    /**
+     * Counts the execution of a line.
+     *
+     * @param line The line number.
+     */
+    public final void touch( int line )
+    {
+        int slot = layout.lineSlot( line );
+        if ( slot >= 0 )
+        {
+            hit( slot );
+        }
+    }
+
+    /**
+     * Counts a branch of a jump.
+     *
+     * @param line The line number.
+     * @param jump The jump number.
+     * @param branch The branch taken.
+     */
+    public final void touchJump( int line, int jump, boolean branch )
+    {
+        int slot = layout.jumpSlot( line, jump, branch );
+        if ( slot >= 0 )
+        {
+            hit( slot );
+        }
+    }
+
+    /**
+     * Counts a branch of a switch.
+     *
+     * @param line The line number.
+     * @param sw The switch number.
+     * @param branch The branch taken, <code>-1</code> for the default branch.
+     */
+    public final void touchSwitch( int line, int sw, int branch )
+    {
+        int slot = layout.switchSlot( line, sw, branch );
+        if ( slot >= 0 )
+        {
+            hit( slot );
+        }
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param slot The slot of the counter.
+     */
+    public abstract void hit( int slot );
+
+    /**
+     * Gets the value of a counter.
+     *
+     * @param slot The slot of the counter.
+     * @return The value of the counter.
+     */
+    public abstract long get( int slot );
+
+    /**
+     * Resets all counters to zero.
+     */
+    public abstract void reset();
+
+}
@@ -0,0 +1,262 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A file of raw hit counters. The file starts with a header of four ints: the magic number, the version, the end of
+ * the last complete record and a reserved field. Each record holds its length, the number of slots and its kind,
+ * followed by the key of the class, padding to the next int boundary and finally one unsigned int counter per slot.
+ * All values are big-endian.
+ * <p>
+ * A {@link #LAYOUT_RECORD} is keyed by the class name and the encoded slot layout as length-prefixed chars, so it can
+ * be read on its own. A {@link #CLASS_ID_RECORD} only holds the {@link #classId(String) class id} and the
+ * {@link #checksum(String) checksum} of the layout without aliases, with the counters in the slot order of that layout.
+ * The static structure of the class is joined from the instrumentation metadata when the counters are read, which
+ * keeps the files written by the JVMs small.
+ * <p>
+ * In mapped mode, the file is preallocated and memory-mapped, each class appends its record when it registers and the
+ * counters are incremented in place. The end offset in the header is only advanced once a record is complete, so a
+ * reader never sees a partial record even if the JVM died.
+ */
+public final class CounterFile
+{
+
+    /**
+     * The magic number at the start of a counter file.
+     */
+    public static final int MAGIC = 0x43344354; // "C4CT"
+
+    /**
+     * The version of the file format.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * The kind of record keyed by the class name and its slot layout.
+     */
+    public static final int LAYOUT_RECORD = 0;
+
+    /**
+     * The kind of record keyed by the class id and the checksum of its slot layout.
+     */
+    public static final int CLASS_ID_RECORD = 1;
+
+    /**
+     * The size of the file header in bytes.
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * The extension of counter files.
+     */
+    public static final String SUFFIX = ".counters";
+
+    private static final int CLASS_ID_HEADER_SIZE = 24;
+
+    private final MappedByteBuffer buffer;
+
+    private int end;
+
+    private CounterFile( MappedByteBuffer buffer )
+    {
+        this.buffer = buffer;
+        end = HEADER_SIZE;
+    }
+
+    /**
+     * Creates and maps a new counter file.
+     *
+     * @param file The file to create, must not be {@code null}.
+     * @param capacity The size of the file in bytes.
+     * @return The counter file, never {@code null}.
+     * @throws IOException If the file could not be created or mapped.
+     */
+    public static CounterFile create( File file, int capacity )
+        throws IOException
+    {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            raf.setLength( capacity );
+            // the mapping stays valid after the channel has been closed
+            buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, capacity );
+        }
+        finally
+        {
+            raf.close();
+        }
+        buffer.putInt( 0, MAGIC );
+        buffer.putInt( 4, VERSION );
+        buffer.putInt( 8, HEADER_SIZE );
+        buffer.putInt( 12, 0 );
+        return new CounterFile( buffer );
+    }
+
+    /**
+     * Appends the record of a class.
+     *
+     * @param className The fully qualified name of the class, must not be {@code null}.
+     * @param layout The encoded slot layout of the class, must not be {@code null}.
+     * @param slots The number of slots.
+     * @return The buffer holding the counters of the class or {@code null} if the file is full.
+     */
+    public synchronized ByteBuffer allocate( String className, String layout, int slots )
+    {
+        int header = align( 16 + className.length() * 2 + 4 + layout.length() * 2 );
+        long length = header + slots * 4L;
+        if ( end + length > buffer.capacity() )
+        {
+            return null;
+        }
+
+        ByteBuffer record = buffer.duplicate();
+        record.position( end );
+        record.putInt( (int) length ).putInt( slots ).putInt( LAYOUT_RECORD );
+        putChars( record, className );
+        putChars( record, layout );
+
+        record.position( end + header ).limit( end + (int) length );
+        ByteBuffer counters = record.slice();
+
+        end += (int) length;
+        buffer.putInt( 8, end );
+        return counters;
+    }
+
+    /**
+     * Flushes the counters to the disk.
+     */
+    public synchronized void force()
+    {
+        buffer.force();
+    }
+
+    /**
+     * Calculates the id of a class, a 64-bit FNV-1a hash of its name.
+     *
+     * @param className The fully qualified name of the class, must not be {@code null}.
+     * @return The id of the class.
+     */
+    public static long classId( String className )
+    {
+        long hash = 0xcbf29ce484222325L;
+        for ( int i = 0; i < className.length(); i++ )
+        {
+            hash ^= className.charAt( i );
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Calculates the checksum of a slot layout, which detects counters that do not match the metadata.
+     *
+     * @param canonicalLayout The slot layout without aliases, see {@link ProbeLayout#encodeCanonical()}, must not be
+     *            {@code null}.
+     * @return The checksum of the layout.
+     */
+    public static int checksum( String canonicalLayout )
+    {
+        return canonicalLayout.hashCode();
+    }
+
+    /**
+     * Writes the current values of the given counters to a new counter file.
+     *
+     * @param file The file to write, must not be {@code null}.
+     * @param probes The counters to write, must not be {@code null}.
+     * @throws IOException If the file could not be written.
+     */
+    public static void write( File file, List<ClassProbes> probes )
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            write( out, probes, false );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the current values of the given counters in the format of a counter file. The counters are written as
+     * class id records.
+     *
+     * @param output The stream to write to, must not be {@code null}. The stream is flushed but not closed.
+     * @param probes The counters to write, must not be {@code null}.
+     * @param reset Whether to reset the counters of each class right after they have been written.
+     * @throws IOException If the counters could not be written.
+     */
+    static void write( OutputStream output, List<ClassProbes> probes, boolean reset )
+        throws IOException
+    {
+        long end = HEADER_SIZE;
+        for ( Iterator<ClassProbes> it = probes.iterator(); it.hasNext(); )
+        {
+            end += CLASS_ID_HEADER_SIZE + it.next().getLayout().getCanonicalSlotCount() * 4L;
+        }
+        if ( end > Integer.MAX_VALUE )
+        {
+            throw new IOException( "Too many counters" );
+        }
+
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( output, 64 * 1024 ) );
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+        out.writeInt( (int) end );
+        out.writeInt( 0 );
+
+        for ( Iterator<ClassProbes> it = probes.iterator(); it.hasNext(); )
+        {
+            ClassProbes probe = it.next();
+            ProbeLayout layout = probe.getLayout();
+            int[] slots = layout.getCanonicalSlots();
+
+            out.writeInt( CLASS_ID_HEADER_SIZE + slots.length * 4 );
+            out.writeInt( slots.length );
+            out.writeInt( CLASS_ID_RECORD );
+            out.writeLong( classId( probe.getClassName() ) );
+            out.writeInt( checksum( layout.encodeCanonical() ) );
+            for ( int i = 0; i < slots.length; i++ )
+            {
+                // saturate rather than wrap around the unsigned range
+                out.writeInt( (int) Math.min( probe.get( slots[i] ), 0xFFFFFFFFL ) );
+            }
+            if ( reset )
+            {
+                probe.reset();
+            }
+        }
+        out.flush();
+    }
+
+    private static void putChars( ByteBuffer buffer, String value )
+    {
+        buffer.putInt( value.length() );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            buffer.putChar( value.charAt( i ) );
+        }
+    }
+
+    private static int align( int size )
+    {
+        return ( size + 3 ) & ~3;
+    }
+
+}
@@ -0,0 +1,140 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Runtime support for the shard mode of the <code>instrument</code> goal. Instrumented classes call {@link #init()}
+ * from their static initializer, which points the Cobertura runtime of the current JVM to a data file of its own in the
+ * shard directory. As no other JVM writes to that file, saving the coverage data at shutdown neither waits for the lock
+ * of a shared data file nor has to re-read and merge it. The shards are merged by the <code>merge</code> goal.
+ * <p>
+ * This class is copied next to the instrumented classes and must not depend on anything but the JRE.
+ */
+public final class CoverageShard
+{
+
+    /**
+     * The system property holding the data file of the Cobertura runtime.
+     */
+    public static final String DATAFILE_PROPERTY = "net.sourceforge.cobertura.datafile";
+
+    /**
+     * The system property to override the shard directory with, e.g. when the instrumented classes run on another
+     * machine.
+     */
+    public static final String DIRECTORY_PROPERTY = "cobertura4it.shardDirectory";
+
+    /**
+     * The class path resource holding the shard directory configured at instrumentation time.
+     */
+    public static final String RESOURCE = "cobertura4it-shard.properties";
+
+    private static volatile boolean initialized;
+
+    private CoverageShard()
+    {
+        // hide
+    }
+
+    /**
+     * Configures the data file of the Cobertura runtime unless already done. A data file given explicitly via
+     * <code>-Dnet.sourceforge.cobertura.datafile</code> takes precedence.
+     */
+    public static void init()
+    {
+        if ( initialized )
+        {
+            return;
+        }
+
+        synchronized ( CoverageShard.class )
+        {
+            if ( initialized )
+            {
+                return;
+            }
+            initialized = true;
+
+            try
+            {
+                if ( System.getProperty( DATAFILE_PROPERTY ) != null )
+                {
+                    return;
+                }
+
+                File directory = getDirectory();
+                if ( directory == null )
+                {
+                    return;
+                }
+                directory.mkdirs();
+
+                System.setProperty( DATAFILE_PROPERTY, new File( directory, newName( ".ser" ) ).getAbsolutePath() );
+            }
+            catch ( RuntimeException e )
+            {
+                // never break the instrumented code, the runtime falls back to its default data file
+            }
+        }
+    }
+
+    /**
+     * Gets the shard directory, either from the system property or from the resource written at instrumentation time.
+     *
+     * @return The shard directory or {@code null} if none is configured.
+     */
+    static File getDirectory()
+    {
+        String directory = System.getProperty( DIRECTORY_PROPERTY );
+        if ( directory != null && directory.length() > 0 )
+        {
+            return new File( directory );
+        }
+
+        ClassLoader loader = CoverageShard.class.getClassLoader();
+        InputStream is = ( loader != null ) ? loader.getResourceAsStream( RESOURCE )
+                        : ClassLoader.getSystemResourceAsStream( RESOURCE );
+        if ( is == null )
+        {
+            return null;
+        }
+        try
+        {
+            try
+            {
+                Properties props = new Properties();
+                props.load( is );
+                directory = props.getProperty( "directory" );
+            }
+            finally
+            {
+                is.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        return ( directory != null && directory.length() > 0 ) ? new File( directory ) : null;
+    }
+
+    /**
+     * Generates a file name unique to the current JVM.
+     *
+     * @param suffix The file extension, must not be {@code null}.
+     * @return The file name, never {@code null}.
+     */
+    static String newName( String suffix )
+    {
+        // the JVM name usually is pid@host, the random part covers JVMs started within the same millisecond
+        String jvm = ManagementFactory.getRuntimeMXBean().getName().replaceAll( "[^a-zA-Z0-9.@_-]", "_" );
+        return "cobertura-" + jvm + "-" + Long.toString( System.currentTimeMillis(), 36 ) + "-"
+            + Long.toHexString( new Random().nextLong() & Long.MAX_VALUE ) + suffix;
+    }
+
+}
@@ -0,0 +1,44 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Counters living in a memory-mapped counter file. The operating system writes the pages back to the file, so the
+ * counters survive the JVM without a shutdown hook. Increments are plain, unsynchronized stores, concurrent hits of the
+ * same slot may occasionally be lost, just like with the original Cobertura runtime.
+ */
+final class MappedProbes
+    extends ClassProbes
+{
+
+    private final ByteBuffer counters;
+
+    MappedProbes( String className, String encodedLayout, ProbeLayout layout, ByteBuffer counters )
+    {
+        super( className, encodedLayout, layout );
+        this.counters = counters;
+    }
+
+    @Override
+    public void hit( int slot )
+    {
+        int index = slot << 2;
+        counters.putInt( index, counters.getInt( index ) + 1 );
+    }
+
+    @Override
+    public long get( int slot )
+    {
+        return counters.getInt( slot << 2 ) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset()
+    {
+        for ( int index = counters.limit() - 4; index >= 0; index -= 4 )
+        {
+            counters.putInt( index, 0 );
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A control endpoint to pull the counters of the probe modes from a running JVM. If the system property
+ * {@link #PORT_PROPERTY} is set, the {@link ProbeRuntime} listens on that port of the loopback interface once the first
+ * class has registered. A client sends one of the commands {@link #DUMP} or {@link #DUMP_RESET} terminated by a line
+ * feed and receives the current counters of all registered classes in the format of a {@link CounterFile}, after which
+ * the connection is closed. An unknown command closes the connection without a reply.
+ * <p>
+ * This class is copied next to the instrumented classes and must not depend on anything but the JRE.
+ */
+public final class ProbeControl
+{
+
+    /**
+     * The system property holding the port to listen on.
+     */
+    public static final String PORT_PROPERTY = "cobertura4it.controlPort";
+
+    /**
+     * The command to dump the counters.
+     */
+    public static final String DUMP = "DUMP";
+
+    /**
+     * The command to dump the counters and reset each class right after its counters have been dumped.
+     */
+    public static final String DUMP_RESET = "DUMP_RESET";
+
+    private static final int MAX_COMMAND = 64;
+
+    private ProbeControl()
+    {
+        // hide
+    }
+
+    /**
+     * Starts listening if a port is configured. Never fails, problems are reported to the standard error stream.
+     */
+    static void start()
+    {
+        String port = System.getProperty( PORT_PROPERTY );
+        if ( port == null || port.trim().length() <= 0 )
+        {
+            return;
+        }
+
+        try
+        {
+            ServerSocket server = new ServerSocket( Integer.parseInt( port.trim() ), 8, InetAddress.getByName( null ) );
+            new Listener( server ).start();
+        }
+        catch ( NumberFormatException e )
+        {
+            System.err.println( "[cobertura4it] Invalid " + PORT_PROPERTY + ": " + port );
+        }
+        catch ( IOException e )
+        {
+            System.err.println( "[cobertura4it] Could not listen on port " + port + ": " + e.getMessage() );
+        }
+        catch ( SecurityException e )
+        {
+            System.err.println( "[cobertura4it] Could not listen on port " + port + ": " + e.getMessage() );
+        }
+    }
+
+    private static void serve( Socket socket )
+        throws IOException
+    {
+        try
+        {
+            String command = readCommand( socket.getInputStream() );
+            if ( DUMP.equals( command ) || DUMP_RESET.equals( command ) )
+            {
+                OutputStream output = socket.getOutputStream();
+                ProbeRuntime.dump( output, DUMP_RESET.equals( command ) );
+                output.flush();
+            }
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    private static String readCommand( InputStream input )
+        throws IOException
+    {
+        StringBuilder command = new StringBuilder();
+        for ( int c = input.read(); c >= 0 && c != '\n'; c = input.read() )
+        {
+            if ( command.length() >= MAX_COMMAND )
+            {
+                return null;
+            }
+            if ( c != '\r' )
+            {
+                command.append( (char) c );
+            }
+        }
+        return command.toString().trim();
+    }
+
+    /**
+     * Serves the connections one after another, so concurrent dumps do not interleave their resets.
+     */
+    private static final class Listener
+        extends Thread
+    {
+
+        private final ServerSocket server;
+
+        Listener( ServerSocket server )
+        {
+            super( "cobertura4it-control" );
+            this.server = server;
+            // never keep the instrumented JVM alive
+            setDaemon( true );
+        }
+
+        @Override
+        public void run()
+        {
+            while ( !server.isClosed() )
+            {
+                try
+                {
+                    Socket socket = server.accept();
+                    // a stalled client must not block the endpoint forever
+                    socket.setSoTimeout( 30 * 1000 );
+                    serve( socket );
+                }
+                catch ( IOException e )
+                {
+                    System.err.println( "[cobertura4it] Control connection failed: " + e.getMessage() );
+                }
+                catch ( RuntimeException e )
+                {
+                    // keep the endpoint alive for the next dump
+                    System.err.println( "[cobertura4it] Control connection failed: " + e );
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,546 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+/**
+ * Assigns counter slots to the lines, jumps and switches of an instrumented class. The layout is derived from the
+ * coverage metadata at instrumentation time and embedded into the class as a string, so the runtime can map the
+ * probes to their slots and the merge goal can map the slots back to coverage data.
+ * <p>
+ * The encoded form is a sequence of chars: the number of lines, followed by each line as its distance to the previous
+ * line, its alias, its jump count and jump numbers and its switch count and pairs of switch number and branch count.
+ * Slots are assigned to the lines first, then to the jumps, two per jump for its true and false branch, and finally to
+ * the switches, one for the default branch followed by one per branch. A line with an alias other than <code>0</code>
+ * has no probe of its own and shares the slot of the line with the index alias minus one, which always executes
+ * together with it.
+ */
+public final class ProbeLayout
+{
+
+    private final int[] lines;
+
+    private final int[] aliases;
+
+    private final int[] lineSlots;
+
+    private final int[] jumpStart;
+
+    private final int[] jumpNumbers;
+
+    private final int[] jumpSlots;
+
+    private final int[] switchStart;
+
+    private final int[] switchNumbers;
+
+    private final int[] switchBranches;
+
+    private final int[] switchSlots;
+
+    private final int firstLine;
+
+    private final int[] lineIndex;
+
+    private final int lineSlotCount;
+
+    private final int slotCount;
+
+    private ProbeLayout( int[] lines, int[] aliases, int[] jumpStart, int[] jumpNumbers, int[] switchStart,
+                         int[] switchNumbers, int[] switchBranches )
+    {
+        this.lines = lines;
+        this.aliases = aliases;
+        this.jumpStart = jumpStart;
+        this.jumpNumbers = jumpNumbers;
+        this.switchStart = switchStart;
+        this.switchNumbers = switchNumbers;
+        this.switchBranches = switchBranches;
+
+        int slot = 0;
+        lineSlots = new int[lines.length];
+        for ( int i = 0; i < lines.length; i++ )
+        {
+            if ( aliases[i] < 0 )
+            {
+                lineSlots[i] = slot++;
+            }
+        }
+        lineSlotCount = slot;
+        for ( int i = 0; i < lines.length; i++ )
+        {
+            if ( aliases[i] >= 0 )
+            {
+                lineSlots[i] = lineSlots[aliases[i]];
+            }
+        }
+        jumpSlots = new int[jumpNumbers.length];
+        for ( int i = 0; i < jumpNumbers.length; i++ )
+        {
+            jumpSlots[i] = slot;
+            slot += 2;
+        }
+        switchSlots = new int[switchNumbers.length];
+        for ( int i = 0; i < switchNumbers.length; i++ )
+        {
+            switchSlots[i] = slot;
+            slot += 1 + switchBranches[i];
+        }
+        slotCount = slot;
+
+        firstLine = ( lines.length > 0 ) ? lines[0] : 0;
+        lineIndex = new int[( lines.length > 0 ) ? lines[lines.length - 1] - firstLine + 1 : 0];
+        for ( int i = 0; i < lines.length; i++ )
+        {
+            lineIndex[lines[i] - firstLine] = i + 1;
+        }
+    }
+
+    /**
+     * Decodes a layout.
+     *
+     * @param layout The encoded layout, must not be {@code null}.
+     * @return The layout, never {@code null}.
+     * @throws IllegalArgumentException If the layout is malformed.
+     */
+    public static ProbeLayout parse( String layout )
+    {
+        try
+        {
+            int index = 0;
+            int count = layout.charAt( index++ );
+            int[] lines = new int[count];
+            int[] aliases = new int[count];
+            int[] jumpStart = new int[count + 1];
+            int[] switchStart = new int[count + 1];
+            int[] jumpNumbers = new int[16];
+            int[] switchNumbers = new int[4];
+            int[] switchBranches = new int[4];
+            int jumps = 0;
+            int switches = 0;
+
+            int line = 0;
+            for ( int i = 0; i < count; i++ )
+            {
+                line += layout.charAt( index++ );
+                lines[i] = line;
+                aliases[i] = layout.charAt( index++ ) - 1;
+
+                jumpStart[i] = jumps;
+                for ( int n = layout.charAt( index++ ); n > 0; n-- )
+                {
+                    jumpNumbers = ensureCapacity( jumpNumbers, jumps );
+                    jumpNumbers[jumps++] = layout.charAt( index++ );
+                }
+
+                switchStart[i] = switches;
+                for ( int n = layout.charAt( index++ ); n > 0; n-- )
+                {
+                    switchNumbers = ensureCapacity( switchNumbers, switches );
+                    switchBranches = ensureCapacity( switchBranches, switches );
+                    switchNumbers[switches] = layout.charAt( index++ );
+                    switchBranches[switches++] = layout.charAt( index++ );
+                }
+            }
+            jumpStart[count] = jumps;
+            switchStart[count] = switches;
+
+            if ( index != layout.length() || ( count > 0 && lines[0] <= 0 ) )
+            {
+                throw new IllegalArgumentException( "Malformed probe layout" );
+            }
+            for ( int i = 0; i < count; i++ )
+            {
+                if ( aliases[i] >= count || ( aliases[i] >= 0 && aliases[aliases[i]] >= 0 ) )
+                {
+                    throw new IllegalArgumentException( "Malformed probe layout, bad alias of line " + lines[i] );
+                }
+            }
+
+            return new ProbeLayout( lines, aliases, jumpStart, trim( jumpNumbers, jumps ), switchStart,
+                                    trim( switchNumbers, switches ), trim( switchBranches, switches ) );
+        }
+        catch ( StringIndexOutOfBoundsException e )
+        {
+            throw new IllegalArgumentException( "Truncated probe layout" );
+        }
+    }
+
+    /**
+     * Gets the number of counter slots.
+     *
+     * @return The number of counter slots.
+     */
+    public int getSlotCount()
+    {
+        return slotCount;
+    }
+
+    /**
+     * Gets the number of lines.
+     *
+     * @return The number of lines.
+     */
+    public int getLineCount()
+    {
+        return lines.length;
+    }
+
+    /**
+     * Gets a line number.
+     *
+     * @param index The index of the line.
+     * @return The line number.
+     */
+    public int getLine( int index )
+    {
+        return lines[index];
+    }
+
+    /**
+     * Gets the slot counting the hits of a line. Aliased lines share the slot of the line they execute together with.
+     *
+     * @param index The index of the line.
+     * @return The slot of the line.
+     */
+    public int getLineSlot( int index )
+    {
+        return lineSlots[index];
+    }
+
+    /**
+     * Gets the number of jumps on a line.
+     *
+     * @param index The index of the line.
+     * @return The number of jumps.
+     */
+    public int getJumpCount( int index )
+    {
+        return jumpStart[index + 1] - jumpStart[index];
+    }
+
+    /**
+     * Gets the number of a jump.
+     *
+     * @param index The index of the line.
+     * @param jump The index of the jump on the line.
+     * @return The jump number.
+     */
+    public int getJumpNumber( int index, int jump )
+    {
+        return jumpNumbers[jumpStart[index] + jump];
+    }
+
+    /**
+     * Gets the slot counting the true branch of a jump, the false branch is counted in the next slot.
+     *
+     * @param index The index of the line.
+     * @param jump The index of the jump on the line.
+     * @return The slot of the true branch.
+     */
+    public int getJumpSlot( int index, int jump )
+    {
+        return jumpSlots[jumpStart[index] + jump];
+    }
+
+    /**
+     * Gets the number of switches on a line.
+     *
+     * @param index The index of the line.
+     * @return The number of switches.
+     */
+    public int getSwitchCount( int index )
+    {
+        return switchStart[index + 1] - switchStart[index];
+    }
+
+    /**
+     * Gets the number of a switch.
+     *
+     * @param index The index of the line.
+     * @param sw The index of the switch on the line.
+     * @return The switch number.
+     */
+    public int getSwitchNumber( int index, int sw )
+    {
+        return switchNumbers[switchStart[index] + sw];
+    }
+
+    /**
+     * Gets the number of branches of a switch, not counting the default branch.
+     *
+     * @param index The index of the line.
+     * @param sw The index of the switch on the line.
+     * @return The number of branches.
+     */
+    public int getSwitchBranches( int index, int sw )
+    {
+        return switchBranches[switchStart[index] + sw];
+    }
+
+    /**
+     * Gets the slot counting the default branch of a switch, the other branches are counted in the following slots.
+     *
+     * @param index The index of the line.
+     * @param sw The index of the switch on the line.
+     * @return The slot of the default branch.
+     */
+    public int getSwitchSlot( int index, int sw )
+    {
+        return switchSlots[switchStart[index] + sw];
+    }
+
+    /**
+     * Gets the number of slots of the layout without aliases, i.e. with a slot for every line.
+     *
+     * @return The number of slots without aliases.
+     */
+    public int getCanonicalSlotCount()
+    {
+        return lines.length + slotCount - lineSlotCount;
+    }
+
+    /**
+     * Maps the slots of the layout without aliases to the slots of this layout. Aliased lines map to the slot they
+     * share, all other slots keep their order.
+     *
+     * @return The slot of this layout for each slot of the layout without aliases, never {@code null}.
+     */
+    public int[] getCanonicalSlots()
+    {
+        int[] slots = new int[getCanonicalSlotCount()];
+        System.arraycopy( lineSlots, 0, slots, 0, lines.length );
+        for ( int i = lines.length; i < slots.length; i++ )
+        {
+            slots[i] = lineSlotCount + i - lines.length;
+        }
+        return slots;
+    }
+
+    /**
+     * Encodes this layout without its aliases. This is the layout the instrumentation derives from the coverage
+     * metadata with line placement, so it can be recomputed from the metadata alone.
+     *
+     * @return The encoded layout without aliases, never {@code null}.
+     */
+    public String encodeCanonical()
+    {
+        Builder builder = new Builder();
+        for ( int i = 0; i < lines.length; i++ )
+        {
+            builder.addLine( lines[i] );
+            for ( int j = jumpStart[i]; j < jumpStart[i + 1]; j++ )
+            {
+                builder.addJump( jumpNumbers[j] );
+            }
+            for ( int j = switchStart[i]; j < switchStart[i + 1]; j++ )
+            {
+                builder.addSwitch( switchNumbers[j], switchBranches[j] );
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Looks up the slot of a line.
+     *
+     * @param line The line number.
+     * @return The slot or <code>-1</code> if the line is unknown.
+     */
+    public int lineSlot( int line )
+    {
+        int index = indexOf( line );
+        return ( index >= 0 ) ? lineSlots[index] : -1;
+    }
+
+    /**
+     * Tells whether a line has no probe of its own but shares the slot of another line.
+     *
+     * @param line The line number.
+     * @return {@code true} if the line is an alias, {@code false} otherwise.
+     */
+    public boolean isAlias( int line )
+    {
+        int index = indexOf( line );
+        return index >= 0 && aliases[index] >= 0;
+    }
+
+    /**
+     * Looks up the slot of a jump branch.
+     *
+     * @param line The line number.
+     * @param jump The jump number.
+     * @param branch The branch.
+     * @return The slot or <code>-1</code> if the jump is unknown.
+     */
+    public int jumpSlot( int line, int jump, boolean branch )
+    {
+        int index = indexOf( line );
+        if ( index >= 0 )
+        {
+            for ( int i = jumpStart[index]; i < jumpStart[index + 1]; i++ )
+            {
+                if ( jumpNumbers[i] == jump )
+                {
+                    return jumpSlots[i] + ( branch ? 0 : 1 );
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Looks up the slot of a switch branch.
+     *
+     * @param line The line number.
+     * @param sw The switch number.
+     * @param branch The branch, <code>-1</code> for the default branch.
+     * @return The slot or <code>-1</code> if the switch or branch is unknown.
+     */
+    public int switchSlot( int line, int sw, int branch )
+    {
+        int index = indexOf( line );
+        if ( index >= 0 )
+        {
+            for ( int i = switchStart[index]; i < switchStart[index + 1]; i++ )
+            {
+                if ( switchNumbers[i] == sw )
+                {
+                    return ( branch < switchBranches[i] ) ? switchSlots[i] + 1 + branch : -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf( int line )
+    {
+        int offset = line - firstLine;
+        return ( offset >= 0 && offset < lineIndex.length ) ? lineIndex[offset] - 1 : -1;
+    }
+
+    private static int[] ensureCapacity( int[] array, int size )
+    {
+        if ( size < array.length )
+        {
+            return array;
+        }
+        int[] grown = new int[array.length * 2];
+        System.arraycopy( array, 0, grown, 0, size );
+        return grown;
+    }
+
+    private static int[] trim( int[] array, int size )
+    {
+        int[] trimmed = new int[size];
+        System.arraycopy( array, 0, trimmed, 0, size );
+        return trimmed;
+    }
+
+    /**
+     * Encodes a layout. Lines must be added in ascending order, each followed by its jumps and switches.
+     */
+    public static final class Builder
+    {
+
+        private final StringBuilder buffer = new StringBuilder( 256 );
+
+        private int lines;
+
+        private int previousLine;
+
+        private int jumpCountIndex = -1;
+
+        private int switchCountIndex = -1;
+
+        /**
+         * Adds a line with a probe of its own.
+         *
+         * @param line The line number, must be greater than the previous line number.
+         * @return This builder.
+         */
+        public Builder addLine( int line )
+        {
+            return addLine( line, -1 );
+        }
+
+        /**
+         * Adds a line.
+         *
+         * @param line The line number, must be greater than the previous line number.
+         * @param alias The index of the line whose slot this line shares, <code>-1</code> for a slot of its own.
+         * @return This builder.
+         */
+        public Builder addLine( int line, int alias )
+        {
+            if ( line <= previousLine || line > Character.MAX_VALUE )
+            {
+                throw new IllegalArgumentException( "Invalid line " + line );
+            }
+            buffer.append( (char) ( line - previousLine ) );
+            buffer.append( toChar( alias + 1 ) );
+            previousLine = line;
+            jumpCountIndex = buffer.length();
+            buffer.append( (char) 0 );
+            switchCountIndex = buffer.length();
+            buffer.append( (char) 0 );
+            lines++;
+            return this;
+        }
+
+        /**
+         * Adds a jump to the current line. All jumps of a line must be added before its switches.
+         *
+         * @param number The jump number.
+         * @return This builder.
+         */
+        public Builder addJump( int number )
+        {
+            if ( switchCountIndex != buffer.length() - 1 )
+            {
+                throw new IllegalStateException( "Jumps must precede the switches of a line" );
+            }
+            buffer.insert( switchCountIndex, toChar( number ) );
+            buffer.setCharAt( jumpCountIndex, (char) ( buffer.charAt( jumpCountIndex ) + 1 ) );
+            switchCountIndex++;
+            return this;
+        }
+
+        /**
+         * Adds a switch to the current line.
+         *
+         * @param number The switch number.
+         * @param branches The number of branches, not counting the default branch.
+         * @return This builder.
+         */
+        public Builder addSwitch( int number, int branches )
+        {
+            if ( switchCountIndex < 0 )
+            {
+                throw new IllegalStateException( "No line" );
+            }
+            buffer.append( toChar( number ) ).append( toChar( branches ) );
+            buffer.setCharAt( switchCountIndex, (char) ( buffer.charAt( switchCountIndex ) + 1 ) );
+            return this;
+        }
+
+        /**
+         * Gets the encoded layout.
+         *
+         * @return The encoded layout, never {@code null}.
+         */
+        @Override
+        public String toString()
+        {
+            return toChar( lines ) + buffer.toString();
+        }
+
+        private static char toChar( int value )
+        {
+            if ( value < 0 || value > Character.MAX_VALUE )
+            {
+                throw new IllegalArgumentException( "Value out of range: " + value );
+            }
+            return (char) value;
+        }
+
+    }
+
+}
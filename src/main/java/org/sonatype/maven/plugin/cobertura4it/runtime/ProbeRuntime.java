@@ -0,0 +1,247 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runtime support for the probe modes of the instrumentation goals. Classes instrumented with probes register with
+ * {@link #register(String, String, int)} from their static initializer and count their hits in the returned
+ * {@link ClassProbes} instead of calling into the Cobertura runtime. The counter files are written to the shard
+ * directory, or the working directory if none is configured, and merged by the <code>merge</code> goal. The counters
+ * can also be pulled from the running JVM via the {@link ProbeControl} endpoint.
+ * <p>
+ * This class is copied next to the instrumented classes and must not depend on anything but the JRE.
+ */
+public final class ProbeRuntime
+{
+
+    /**
+     * The mode counting hits in a memory-mapped counter file.
+     */
+    public static final int MAPPED = 1;
+
+    /**
+     * The mode counting hits in lock-free striped counters on the heap.
+     */
+    public static final int ATOMIC = 2;
+
+    /**
+     * The mode recording in flags on the heap whether a slot was hit at all.
+     */
+    public static final int BOOLEAN = 3;
+
+    /**
+     * The system property to override the size of the memory-mapped counter file with, in bytes.
+     */
+    public static final String CAPACITY_PROPERTY = "cobertura4it.counterFileSize";
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    private static final List<ClassProbes> HEAP = new ArrayList<ClassProbes>();
+
+    private static final List<ClassProbes> ALL = new ArrayList<ClassProbes>();
+
+    private static CounterFile mapped;
+
+    private static boolean mappedFailed;
+
+    private static boolean hookInstalled;
+
+    private static boolean controlStarted;
+
+    private ProbeRuntime()
+    {
+        // hide
+    }
+
+    /**
+     * Registers an instrumented class. Counters kept on the heap are written to a counter file when the JVM shuts down.
+     * This method never fails, if the requested mode is not available the counters are kept on the heap.
+     *
+     * @param className The fully qualified name of the class, must not be {@code null}.
+     * @param layout The encoded slot layout of the class, must not be {@code null}.
+     * @param mode The mode to count the hits in.
+     * @return The counters of the class, never {@code null}.
+     */
+    public static synchronized ClassProbes register( String className, String layout, int mode )
+    {
+        ProbeLayout probeLayout;
+        try
+        {
+            probeLayout = ProbeLayout.parse( layout );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // never break the instrumented code, the class just goes uncounted
+            System.err.println( "[cobertura4it] Bad probe layout for " + className + ": " + e.getMessage() );
+            layout = "\0";
+            probeLayout = ProbeLayout.parse( layout );
+        }
+
+        if ( !controlStarted )
+        {
+            controlStarted = true;
+            ProbeControl.start();
+        }
+
+        ClassProbes probes;
+        if ( mode == MAPPED )
+        {
+            ByteBuffer counters = allocateMapped( className, layout, probeLayout.getSlotCount() );
+            if ( counters != null )
+            {
+                probes = new MappedProbes( className, layout, probeLayout, counters );
+                ALL.add( probes );
+                return probes;
+            }
+        }
+
+        if ( mode == ATOMIC )
+        {
+            probes = new StripedProbes( className, layout, probeLayout );
+        }
+        else if ( mode == BOOLEAN )
+        {
+            probes = new BooleanProbes( className, layout, probeLayout );
+        }
+        else
+        {
+            probes = new ArrayProbes( className, layout, probeLayout );
+        }
+        HEAP.add( probes );
+        ALL.add( probes );
+        installShutdownHook();
+        return probes;
+    }
+
+    /**
+     * Gets the flags that the probes of a class registered in the boolean mode set inline.
+     *
+     * @param probes The counters returned by {@link #register(String, String, int)}, must not be {@code null}.
+     * @return The flags of the class, never {@code null}.
+     */
+    public static boolean[] getHits( ClassProbes probes )
+    {
+        if ( probes instanceof BooleanProbes )
+        {
+            return ( (BooleanProbes) probes ).getHits();
+        }
+        // not registered in the boolean mode, the inline probes just go uncounted
+        return new boolean[probes.getLayout().getSlotCount()];
+    }
+
+    /**
+     * Writes the current counters of all registered classes in the format of a counter file.
+     *
+     * @param output The stream to write to, must not be {@code null}.
+     * @param reset Whether to reset the counters of each class right after they have been written. Hits counted while
+     *            a class is being written are lost.
+     * @throws IOException If the counters could not be written.
+     */
+    static void dump( OutputStream output, boolean reset )
+        throws IOException
+    {
+        List<ClassProbes> probes;
+        synchronized ( ProbeRuntime.class )
+        {
+            probes = new ArrayList<ClassProbes>( ALL );
+        }
+        CounterFile.write( output, probes, reset );
+    }
+
+    private static ByteBuffer allocateMapped( String className, String layout, int slots )
+    {
+        if ( mapped == null && !mappedFailed )
+        {
+            File file = newFile();
+            try
+            {
+                file.getParentFile().mkdirs();
+                int capacity = Integer.getInteger( CAPACITY_PROPERTY, DEFAULT_CAPACITY ).intValue();
+                mapped = CounterFile.create( file, capacity );
+            }
+            catch ( IOException e )
+            {
+                mappedFailed = true;
+                System.err.println( "[cobertura4it] Could not map counter file " + file + ": " + e.getMessage() );
+            }
+        }
+        ByteBuffer counters = ( mapped != null ) ? mapped.allocate( className, layout, slots ) : null;
+        if ( counters == null && mapped != null && !mappedFailed )
+        {
+            mappedFailed = true;
+            System.err.println( "[cobertura4it] Counter file is full, increase " + CAPACITY_PROPERTY );
+        }
+        return counters;
+    }
+
+    private static void installShutdownHook()
+    {
+        if ( hookInstalled )
+        {
+            return;
+        }
+        hookInstalled = true;
+
+        Runtime.getRuntime().addShutdownHook( new CounterWriter() );
+    }
+
+    private static void saveHeapCounters()
+    {
+        List<ClassProbes> probes;
+        synchronized ( ProbeRuntime.class )
+        {
+            probes = new ArrayList<ClassProbes>( HEAP );
+        }
+        if ( probes.isEmpty() )
+        {
+            return;
+        }
+
+        File file = newFile();
+        try
+        {
+            file.getParentFile().mkdirs();
+            CounterFile.write( file, probes );
+        }
+        catch ( IOException e )
+        {
+            System.err.println( "[cobertura4it] Could not write counter file " + file + ": " + e.getMessage() );
+        }
+    }
+
+    private static File newFile()
+    {
+        File directory = CoverageShard.getDirectory();
+        if ( directory == null )
+        {
+            directory = new File( System.getProperty( "user.dir" ) );
+        }
+        return new File( directory, CoverageShard.newName( CounterFile.SUFFIX ) ).getAbsoluteFile();
+    }
+
+    /**
+     * Writes the counters kept on the heap when the JVM shuts down.
+     */
+    private static final class CounterWriter
+        extends Thread
+    {
+
+        CounterWriter()
+        {
+            super( "cobertura4it-counters" );
+        }
+
+        @Override
+        public void run()
+        {
+            saveHeapCounters();
+        }
+
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.sonatype.maven.plugin.cobertura4it.runtime;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counters on the heap that are incremented without locks and without losing hits. Each thread increments the slots
+ * of one of several stripes, chosen by its id, so threads hitting the same hot line mostly update different cache
+ * lines instead of contending for one. Each stripe is padded to a multiple of 16 counters, so even the stripes of a
+ * class with only a few slots do not share a 64 byte cache line. The stripes are summed up when the counters are
+ * read, which only happens when they are written to a counter file at shutdown.
+ */
+final class StripedProbes
+    extends ClassProbes
+{
+
+    private static final int STRIPES = stripes( Runtime.getRuntime().availableProcessors() );
+
+    // 16 ints fill a 64 byte cache line
+    private static final int LINE = 16;
+
+    private final int stride;
+
+    private final AtomicIntegerArray counters;
+
+    StripedProbes( String className, String encodedLayout, ProbeLayout layout )
+    {
+        super( className, encodedLayout, layout );
+        stride = Math.max( LINE, ( layout.getSlotCount() + LINE - 1 ) & -LINE );
+        counters = new AtomicIntegerArray( stride * STRIPES );
+    }
+
+    @Override
+    public void hit( int slot )
+    {
+        int stripe = (int) Thread.currentThread().getId() & ( STRIPES - 1 );
+        counters.incrementAndGet( stripe * stride + slot );
+    }
+
+    @Override
+    public long get( int slot )
+    {
+        long hits = 0;
+        for ( int index = slot; index < counters.length(); index += stride )
+        {
+            hits += counters.get( index ) & 0xFFFFFFFFL;
+        }
+        return hits;
+    }
+
+    @Override
+    public void reset()
+    {
+        for ( int index = 0; index < counters.length(); index++ )
+        {
+            counters.set( index, 0 );
+        }
+    }
+
+    /**
+     * Gets the number of stripes, the next power of two of the processor count, capped to bound the memory per class.
+     */
+    private static int stripes( int processors )
+    {
+        int stripes = 1;
+        while ( stripes < processors && stripes < 16 )
+        {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+}
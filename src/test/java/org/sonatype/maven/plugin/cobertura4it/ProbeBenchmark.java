@@ -0,0 +1,348 @@
+package org.sonatype.maven.plugin.cobertura4it;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+import net.sourceforge.cobertura.coveragedata.ClassData;
+import net.sourceforge.cobertura.coveragedata.JumpData;
+import net.sourceforge.cobertura.coveragedata.LineData;
+import net.sourceforge.cobertura.coveragedata.ProjectData;
+import net.sourceforge.cobertura.coveragedata.SwitchData;
+import net.sourceforge.cobertura.coveragedata.TouchCollector;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.maven.plugin.cobertura4it.runtime.ClassProbes;
+import org.sonatype.maven.plugin.cobertura4it.runtime.CounterFile;
+
+/**
+ * A load harness for the hit counting of instrumented classes. It instruments {@link Workload} once per probe mode,
+ * loads each copy in a class loader of its own and times several threads hammering the same hot lines, comparing the
+ * probes of Cobertura with the <code>atomic</code> and <code>mapped</code> modes. After the timed rounds, the line and
+ * branch hits of each probe mode are read back through a counter file and checked against the hits Cobertura counted
+ * for the same runs. The atomic mode must match exactly, the mapped mode may lose concurrent hits by design, so it
+ * must only match exactly when run on one thread and otherwise cover the same lines and branches with no more hits.
+ * This is no unit test and not run by the build, run it from the test class path:
+ *
+ * <pre>
+ * java -cp target/test-classes:target/classes:... org.sonatype.maven.plugin.cobertura4it.ProbeBenchmark [threads]
+ *     [iterations] [rounds]
+ * </pre>
+ */
+public class ProbeBenchmark
+{
+
+    private static final String[] MODES = { "cobertura", "atomic", "mapped" };
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        int threads = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : Runtime.getRuntime().availableProcessors();
+        int iterations = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 10000000;
+        int rounds = ( args.length > 2 ) ? Integer.parseInt( args[2] ) : 5;
+
+        // keep the data and counter files written at shutdown out of the working directory
+        File directory = new File( System.getProperty( "java.io.tmpdir" ), "cobertura4it-benchmark" );
+        directory.mkdirs();
+        System.setProperty( "net.sourceforge.cobertura.datafile", new File( directory, "cobertura.ser" ).getPath() );
+        System.setProperty( "cobertura4it.shardDirectory", directory.getPath() );
+
+        byte[] original = load( Workload.class );
+
+        System.out.println( "Hitting " + Workload.class.getName() + " with " + threads + " thread(s), " + iterations
+            + " iterations each" );
+        Map<String, Long> expected = null;
+        for ( String mode : MODES )
+        {
+            ProbeInstrumenter probes = ProbeInstrumenter.forMode( mode, "line" );
+            Instrumenter instrumenter =
+                new Instrumenter( Collections.<Pattern> emptyList(), Collections.<Pattern> emptyList(), null, null,
+                                  null, probes );
+            ProjectData metadata = new ProjectData();
+            byte[] instrumented = instrumenter.instrument( metadata, original );
+            if ( instrumented == null )
+            {
+                throw new IllegalStateException( "Workload was not instrumented in mode " + mode );
+            }
+
+            Class<?> type = new WorkloadLoader( instrumented ).loadClass( Workload.class.getName() );
+            Method run = type.getMethod( "run", int.class );
+
+            // the first round warms up the JIT and is not reported
+            run( run, threads, iterations / 10 );
+            long best = Long.MAX_VALUE;
+            for ( int i = 0; i < rounds; i++ )
+            {
+                best = Math.min( best, run( run, threads, iterations ) );
+            }
+
+            System.out.println( String.format( Locale.ENGLISH, "%-10s %8d ms %10.2f ns/iteration", mode, best / 1000000,
+                                               (double) best / iterations ) );
+
+            ClassData classData =
+                ( probes != null ) ? readCounters( type, metadata, directory ) : readTouches( metadata );
+            Map<String, Long> hits = getHits( classData );
+            if ( expected == null )
+            {
+                expected = hits;
+            }
+            else
+            {
+                verify( mode, expected, hits, "mapped".equals( mode ) && threads > 1 );
+            }
+        }
+    }
+
+    /**
+     * Gets the hits Cobertura counted for the workload, applying them to its instrumentation metadata.
+     */
+    private static ClassData readTouches( ProjectData metadata )
+    {
+        TouchCollector.applyTouchesOnProjectData( metadata );
+        return metadata.getClassData( Workload.class.getName() );
+    }
+
+    /**
+     * Gets the hits counted by the probes of the workload, written to a counter file and read back like the
+     * <code>merge</code> goal does.
+     */
+    private static ClassData readCounters( Class<?> type, ProjectData metadata, File directory )
+        throws Exception
+    {
+        Field field = type.getDeclaredField( ProbeInstrumenter.FIELD );
+        field.setAccessible( true );
+        ClassProbes probes = (ClassProbes) field.get( null );
+
+        File file = File.createTempFile( "benchmark", CounterFile.SUFFIX, directory );
+        try
+        {
+            CounterFile.write( file, Collections.singletonList( probes ) );
+            CounterMetadata counterMetadata = new CounterMetadata();
+            counterMetadata.addClasses( metadata );
+            ProjectData projectData = new ProjectData();
+            CoverageDataFile.mergeInto( projectData, file, counterMetadata );
+            if ( counterMetadata.getUnresolved() > 0 )
+            {
+                throw new IllegalStateException( "Counters of " + type.getName() + " match no metadata" );
+            }
+            return projectData.getClassData( type.getName() );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Flattens the hits of the lines and branches of a class, keyed by a description of each.
+     */
+    private static Map<String, Long> getHits( ClassData classData )
+    {
+        if ( classData == null )
+        {
+            throw new IllegalStateException( "No coverage data for " + Workload.class.getName() );
+        }
+        Map<String, Long> hits = new TreeMap<String, Long>();
+        for ( Object line : classData.getLines() )
+        {
+            LineData lineData = (LineData) line;
+            String key = "line " + lineData.getLineNumber();
+            hits.put( key, Long.valueOf( lineData.getHits() ) );
+            for ( int i = 0; i < lineData.getConditionSize(); i++ )
+            {
+                Object condition = lineData.getConditionData( i );
+                if ( condition instanceof JumpData )
+                {
+                    JumpData jump = (JumpData) condition;
+                    String jumpKey = key + " jump " + jump.getConditionNumber();
+                    hits.put( jumpKey + " true", Long.valueOf( jump.getTrueHits() ) );
+                    hits.put( jumpKey + " false", Long.valueOf( jump.getFalseHits() ) );
+                }
+                else if ( condition instanceof SwitchData )
+                {
+                    SwitchData switchData = (SwitchData) condition;
+                    String switchKey = key + " switch " + switchData.getSwitchNumber();
+                    for ( int branch = 0; branch < switchData.getNumberOfValidBranches() - 1; branch++ )
+                    {
+                        hits.put( switchKey + " case " + branch, Long.valueOf( switchData.getHits( branch ) ) );
+                    }
+                    hits.put( switchKey + " default", Long.valueOf( switchData.getDefaultHits() ) );
+                }
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Checks the hits of a probe mode against those counted by Cobertura.
+     *
+     * @param lossy Whether hits may have been lost, in which case each line or branch must only be covered if it is
+     *            covered by Cobertura and not be hit more often.
+     */
+    private static void verify( String mode, Map<String, Long> expected, Map<String, Long> actual, boolean lossy )
+    {
+        if ( !expected.keySet().equals( actual.keySet() ) )
+        {
+            throw new IllegalStateException( "The " + mode + " mode reports the lines and branches " + actual.keySet()
+                + " instead of " + expected.keySet() );
+        }
+        for ( Map.Entry<String, Long> entry : expected.entrySet() )
+        {
+            long want = entry.getValue().longValue();
+            long got = actual.get( entry.getKey() ).longValue();
+            boolean ok = lossy ? ( got > 0 ) == ( want > 0 ) && got <= want : got == want;
+            if ( !ok )
+            {
+                throw new IllegalStateException( "The " + mode + " mode counted " + got + " hits for "
+                    + entry.getKey() + " instead of " + want );
+            }
+        }
+        System.out.println( String.format( Locale.ENGLISH, "%-10s %s the hits of cobertura", mode,
+                                           lossy ? "covers" : "matches" ) );
+    }
+
+    private static byte[] load( Class<?> type )
+        throws Exception
+    {
+        String resource = type.getName().replace( '.', '/' ) + ".class";
+        InputStream is = type.getClassLoader().getResourceAsStream( resource );
+        try
+        {
+            return IOUtil.toByteArray( is );
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+    }
+
+    /**
+     * Runs the workload on the given number of threads at once.
+     *
+     * @return The elapsed time in nanoseconds until the last thread finished.
+     */
+    private static long run( final Method method, int threads, final int iterations )
+        throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch done = new CountDownLatch( threads );
+        final Exception[] failure = new Exception[1];
+        for ( int i = 0; i < threads; i++ )
+        {
+            Thread thread = new Thread( "benchmark-" + i )
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        method.invoke( null, Integer.valueOf( iterations ) );
+                    }
+                    catch ( Exception e )
+                    {
+                        synchronized ( failure )
+                        {
+                            failure[0] = e;
+                        }
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        synchronized ( failure )
+        {
+            if ( failure[0] != null )
+            {
+                throw failure[0];
+            }
+        }
+        return elapsed;
+    }
+
+    /**
+     * Defines the instrumented workload itself and leaves all other classes, including the runtimes, to its parent.
+     */
+    private static class WorkloadLoader
+        extends ClassLoader
+    {
+
+        private final byte[] bytecode;
+
+        WorkloadLoader( byte[] bytecode )
+        {
+            super( ProbeBenchmark.class.getClassLoader() );
+            this.bytecode = bytecode;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass( String name, boolean resolve )
+            throws ClassNotFoundException
+        {
+            if ( !Workload.class.getName().equals( name ) )
+            {
+                return super.loadClass( name, resolve );
+            }
+            Class<?> type = findLoadedClass( name );
+            if ( type == null )
+            {
+                type = defineClass( name, bytecode, 0, bytecode.length );
+            }
+            if ( resolve )
+            {
+                resolveClass( type );
+            }
+            return type;
+        }
+
+    }
+
+    /**
+     * The instrumented code, a loop whose few lines and branches are hit by all threads.
+     */
+    public static class Workload
+    {
+
+        public static long run( int iterations )
+        {
+            long sum = 0;
+            for ( int i = 0; i < iterations; i++ )
+            {
+                if ( ( i & 1 ) == 0 )
+                {
+                    sum += i;
+                }
+                else
+                {
+                    sum -= i >> 1;
+                }
+                sum = mix( sum );
+            }
+            return sum;
+        }
+
+        private static long mix( long value )
+        {
+            return value ^ ( value >>> 7 );
+        }
+
+    }
+
+}